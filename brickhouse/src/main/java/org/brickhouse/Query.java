@@ -0,0 +1,230 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HValue;
+import org.brickhouse.filter.Filter;
+
+/**
+ * A filter along with the order of the matching rows and the page of them to return, e.g.
+ * 
+ * <pre>
+ * new Query(Filter.parse("point")).tags("dis", "curVal").sort("dis").offset(50).limit(50)
+ * </pre>
+ * 
+ * Rows are ordered by the values of the sort tags in turn. Values of the same type are compared by their natural
+ * order, references by their ids, and values of different types by the names of their types. Rows without a sort tag
+ * come after those with it, in either direction. Rows that are equal on all sort tags are ordered by id, so that pages
+ * are consistent. Without sort tags the order of the rows is unspecified.
+ * 
+ * Rows are matched and sorted on all of their tags, but only the tags given to tags(), if any, are returned.
+ */
+public class Query {
+    public static class Sort {
+        private final String tag;
+        private final boolean descending;
+
+        Sort(String tag, boolean descending) {
+            this.tag = tag;
+            this.descending = descending;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        public boolean isDescending() {
+            return descending;
+        }
+
+        @Override
+        public String toString() {
+            return descending ? tag + " desc" : tag;
+        }
+    }
+
+    private final Filter filter;
+    private final List<Sort> sort = new ArrayList<>();
+    private int offset;
+    private int limit = -1;
+    private Set<String> tags;
+
+    public Query(Filter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Returns only the given tags of the rows, along with their ids. Defaults to all tags.
+     */
+    public Query tags(String... tags) {
+        Set<String> set = new LinkedHashSet<>();
+        set.add("id");
+        Collections.addAll(set, tags);
+        this.tags = set;
+        return this;
+    }
+
+    /**
+     * Orders the rows by the given tag in ascending order, after any sort tags already given.
+     */
+    public Query sort(String tag) {
+        return sort(tag, false);
+    }
+
+    /**
+     * Orders the rows by the given tag, after any sort tags already given.
+     */
+    public Query sort(String tag, boolean descending) {
+        sort.add(new Sort(tag, descending));
+        return this;
+    }
+
+    /**
+     * The number of matching rows to skip. Defaults to 0.
+     */
+    public Query offset(int offset) {
+        if (offset < 0)
+            throw new IllegalArgumentException("offset must not be negative");
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * The maximum number of rows to return. Defaults to no limit.
+     */
+    public Query limit(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        this.limit = limit;
+        return this;
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public List<Sort> getSort() {
+        return Collections.unmodifiableList(sort);
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the limit, or -1 if there is none
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the tags to return, including id, or null for all tags
+     */
+    public Set<String> getTags() {
+        return tags == null ? null : Collections.unmodifiableSet(tags);
+    }
+
+    /**
+     * Returns a new map with only the tags of the given row that the query returns, or the row itself if the query
+     * returns all tags.
+     */
+    public HMap project(HMap row) {
+        if (tags == null)
+            return row;
+        HMap result = new HMap();
+        for (String tag : tags) {
+            HValue value = row.get(tag);
+            if (value != null)
+                result.put(tag, value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the comparator that puts rows in the order of this query, or null if there are no sort tags.
+     */
+    public Comparator<HMap> comparator() {
+        if (sort.isEmpty())
+            return null;
+
+        Comparator<HMap> result = null;
+        for (Sort s : sort) {
+            Comparator<HMap> c = (a, b) -> {
+                HValue va = a.get(s.tag);
+                HValue vb = b.get(s.tag);
+                if (va == null || vb == null)
+                    return va == null ? (vb == null ? 0 : 1) : -1;
+                int cmp = compare(va, vb);
+                return s.descending ? -cmp : cmp;
+            };
+            result = result == null ? c : result.thenComparing(c);
+        }
+        return result.thenComparing((a, b) -> a.id().getId().compareTo(b.id().getId()));
+    }
+
+    /**
+     * Applies the offset and limit of this query to the given rows.
+     */
+    public Stream<HMap> page(Stream<HMap> rows) {
+        if (offset > 0)
+            rows = rows.skip(offset);
+        if (limit >= 0)
+            rows = rows.limit(limit);
+        return rows;
+    }
+
+    /**
+     * Returns whether the query has an offset or a limit.
+     */
+    public boolean isPaged() {
+        return offset > 0 || limit >= 0;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static int compare(HValue a, HValue b) {
+        if (a.getClass() != b.getClass())
+            return a.getClass().getSimpleName().compareTo(b.getClass().getSimpleName());
+        // NaN compares as equal to every number under compareTo, which would not be a consistent order.
+        if (a instanceof HNumber)
+            return Double.compare(((HNumber) a).getValue(), ((HNumber) b).getValue());
+        if (a instanceof HReference)
+            return ((HReference) a).getId().compareTo(((HReference) b).getId());
+        if (a instanceof Comparable)
+            return ((Comparable) a).compareTo(b);
+        return a.toString().compareTo(b.toString());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(filter);
+        if (tags != null)
+            sb.append(" tags ").append(String.join(", ", tags));
+        if (!sort.isEmpty()) {
+            sb.append(" sort ");
+            for (int i = 0; i < sort.size(); i++)
+                sb.append(i == 0 ? "" : ", ").append(sort.get(i));
+        }
+        if (offset > 0)
+            sb.append(" offset ").append(offset);
+        if (limit >= 0)
+            sb.append(" limit ").append(limit);
+        return sb.toString();
+    }
+}
@@ -8,10 +8,13 @@
 package org.brickhouse;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.brickhouse.datatype.HMap;
 import org.brickhouse.datatype.HReference;
@@ -40,6 +43,56 @@ public interface Table extends Closeable {
 
     List<HMap> readAll(Filter filter, boolean setDis);
 
+    /**
+     * Returns a lazy stream of the rows that match the filter. Rows are read as the stream is consumed, so
+     * short-circuiting operations like limit and findFirst end the read without reading the remaining rows. The stream
+     * may hold a database cursor until it is exhausted, so it should be closed, e.g. with try-with-resources. The
+     * default implementation reads all of the rows up front.
+     */
+    default Stream<HMap> stream(Filter filter) {
+        return readAll(filter).stream();
+    }
+
+    default Stream<HMap> stream(Filter filter, boolean setDis) {
+        return readAll(filter, setDis).stream();
+    }
+
+    /**
+     * Returns the page of the rows that match the query's filter, in the query's order.
+     */
+    default List<HMap> readAll(Query query) {
+        try (Stream<HMap> rows = stream(query)) {
+            return rows.collect(Collectors.toList());
+        }
+    }
+
+    default List<HMap> readAll(Query query, boolean setDis) {
+        try (Stream<HMap> rows = stream(query, setDis)) {
+            return rows.collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Returns a lazy stream of the page of the rows that match the query's filter, in the query's order. As with
+     * stream(Filter), the stream should be closed. The default implementation reads and sorts all of the matching
+     * rows.
+     */
+    default Stream<HMap> stream(Query query) {
+        List<HMap> rows = new ArrayList<>();
+        readAll(query.getFilter(), rows::add);
+        if (query.comparator() != null)
+            rows.sort(query.comparator());
+        return query.page(rows.stream()).map(query::project);
+    }
+
+    default Stream<HMap> stream(Query query, boolean setDis) {
+        List<HMap> rows = new ArrayList<>();
+        readAll(query.getFilter(), rows::add, setDis);
+        if (query.comparator() != null)
+            rows.sort(query.comparator());
+        return query.page(rows.stream()).map(query::project);
+    }
+
     int count(Filter filter);
 
     void insert(HMap record);
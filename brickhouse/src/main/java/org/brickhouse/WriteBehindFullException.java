@@ -0,0 +1,20 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse;
+
+/**
+ * Thrown by a write to a memory table when its write-behind queue is full and the table is configured to fail fast.
+ * The table is not changed.
+ */
+public class WriteBehindFullException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public WriteBehindFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,142 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.datatype;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only map storage that keeps the values in an array, and the keys in a shape that is shared by all maps with the
+ * same keys. Entities of the same kind usually have the same tags, so a table of them needs only a few shapes, and each
+ * row costs little more than its values. Compared to a LinkedHashMap there are no per-entry objects or hash table, and
+ * tag names are shared between rows. Values are shared through the Interner. The keys are kept in the order of the
+ * original map, so iteration order is unchanged.
+ */
+class CompactMap extends AbstractMap<String, HValue> {
+    static class Shape {
+        final String[] keys;
+        final Map<String, Integer> index;
+        final Set<String> keySet;
+
+        Shape(String[] keys) {
+            this.keys = keys;
+            index = new HashMap<>(keys.length * 2);
+            for (int i = 0; i < keys.length; i++)
+                index.put(keys[i], i);
+            keySet = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(keys)));
+        }
+
+        int indexOf(Object key) {
+            Integer i = index.get(key);
+            return i == null ? -1 : i;
+        }
+    }
+
+    private final Shape shape;
+    private final HValue[] values;
+
+    private CompactMap(Shape shape, HValue[] values) {
+        this.shape = shape;
+        this.values = values;
+    }
+
+    /**
+     * Returns compact storage with the entries of the given map, or null if there are already too many shapes.
+     */
+    static CompactMap of(Map<String, HValue> map, Shapes shapes) {
+        String[] keys = new String[map.size()];
+        HValue[] values = new HValue[keys.length];
+        int i = 0;
+        for (Entry<String, HValue> e : map.entrySet()) {
+            keys[i] = e.getKey();
+            values[i++] = Interner.value(e.getKey(), e.getValue());
+        }
+        Shape shape = shapes.get(keys);
+        if (shape == null)
+            return null;
+        return new CompactMap(shape, values);
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return values.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return shape.indexOf(key) >= 0;
+    }
+
+    @Override
+    public HValue get(Object key) {
+        int i = shape.indexOf(key);
+        return i < 0 ? null : values[i];
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return shape.keySet;
+    }
+
+    @Override
+    public Collection<HValue> values() {
+        return Collections.unmodifiableList(Arrays.asList(values));
+    }
+
+    @Override
+    public Set<Entry<String, HValue>> entrySet() {
+        return new AbstractSet<Entry<String, HValue>>() {
+            @Override
+            public int size() {
+                return values.length;
+            }
+
+            @Override
+            public Iterator<Entry<String, HValue>> iterator() {
+                return new Iterator<Entry<String, HValue>>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < values.length;
+                    }
+
+                    @Override
+                    public Entry<String, HValue> next() {
+                        if (next >= values.length)
+                            throw new NoSuchElementException();
+                        int i = next++;
+                        return new SimpleImmutableEntry<>(shape.keys[i], values[i]);
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (int i = 0; i < values.length; i++)
+            h += shape.keys[i].hashCode() ^ (values[i] == null ? 0 : values[i].hashCode());
+        return h;
+    }
+}
@@ -7,6 +7,9 @@
  */
 package org.brickhouse.datatype;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -55,52 +58,86 @@ public class HMap extends HValue {
         }
     };
 
-    private final Map<String, HValue> map = new LinkedHashMap<>();
+    private Map<String, HValue> map;
+    /** Whether the storage is shared with other instances, and so must be copied before it is modified. */
+    private boolean shared;
 
     public HMap() {
-        // no op
+        map = new LinkedHashMap<>();
     }
 
     public HMap(Map<String, Object> map) {
-        map.putAll(map);
+        this.map = new LinkedHashMap<>();
+        for (Entry<String, Object> e : map.entrySet())
+            this.map.put(e.getKey(), (HValue) e.getValue());
     }
 
     public HMap(HMap map) {
-        this.map.putAll(map.map);
+        this.map = new LinkedHashMap<>(map.map);
+    }
+
+    private HMap(Map<String, HValue> map, boolean shared) {
+        this.map = map;
+        this.shared = shared;
+    }
+
+    /**
+     * Returns a copy of this map that shares its storage until either of them is modified, at which point the one
+     * that is modified copies the storage. Copies that are only read, like the rows handed out by a table, then cost
+     * a single object. Neither map may be modified while the other is being read by another thread.
+     */
+    public HMap copyOnWrite() {
+        shared = true;
+        return new HMap(map, true);
+    }
+
+    /**
+     * Returns a map with the same entries in compact, read-only storage that shares the key names with other maps with
+     * the same keys in the same order that were compacted with the given shapes, which is much smaller than a regular
+     * map. The storage is copied into a regular map if the returned map is modified.
+     * Returns this map if it can't be compacted.
+     */
+    public HMap compact(Shapes shapes) {
+        if (map instanceof CompactMap)
+            return this;
+        CompactMap compact = CompactMap.of(map, shapes);
+        if (compact == null)
+            return this;
+        return new HMap(compact, true);
     }
 
     public HMap merge(HMap diff) {
         for (Entry<String, HValue> e : diff.entrySet()) {
             if (e.getValue() == HRemove.VALUE)
-                map.remove(e.getKey());
+                writable().remove(e.getKey());
             else
-                map.put(e.getKey(), e.getValue());
+                writable().put(e.getKey(), e.getValue());
         }
         return this;
     }
 
     public HMap put(String key, String value) {
-        map.put(key, new HString(value));
+        writable().put(key, new HString(value));
         return this;
     }
 
     public HMap put(String key, boolean b) {
-        map.put(key, b ? HBoolean.TRUE : HBoolean.FALSE);
+        writable().put(key, b ? HBoolean.TRUE : HBoolean.FALSE);
         return this;
     }
 
     public HMap put(String key, HValue value) {
-        map.put(key, value);
+        writable().put(key, value);
         return this;
     }
 
     public HMap put(String key, int value) {
-        map.put(key, new HNumber(value));
+        writable().put(key, new HNumber(value));
         return this;
     }
 
     public HMap put(String marker) {
-        map.put(marker, HMarker.VALUE);
+        writable().put(marker, HMarker.VALUE);
         return this;
     }
 
@@ -115,22 +152,31 @@ public class HMap extends HValue {
     //        }
 
     public HValue remove(String key) {
-        return map.remove(key);
+        if (shared && !map.containsKey(key))
+            return null;
+        return writable().remove(key);
     }
 
     public HMap delete(String key) {
-        map.remove(key);
+        remove(key);
         return this;
     }
 
+    /**
+     * Returns the underlying map, which may be modified. If the storage is shared it is copied first.
+     */
     public Map<String, HValue> getMap() {
-        return map;
+        return writable();
     }
 
     public boolean isEmpty() {
         return map.isEmpty();
     }
 
+    public int size() {
+        return map.size();
+    }
+
     public boolean containsKey(String name) {
         return map.containsKey(name);
     }
@@ -163,8 +209,21 @@ public class HMap extends HValue {
         return "????";
     }
 
+    /**
+     * Returns the keys. Removals through the set are supported.
+     */
     public Set<String> keySet() {
-        return map.keySet();
+        return new SharedSet<String>() {
+            @Override
+            Set<String> set() {
+                return map.keySet();
+            }
+
+            @Override
+            String key(String e) {
+                return e;
+            }
+        };
     }
 
     public HBinary getBinary(String name) {
@@ -243,8 +302,115 @@ public class HMap extends HValue {
         return n.getValue();
     }
 
+    /**
+     * Returns the entries. Removals through the set and modification of the entries are supported.
+     */
     public Set<Entry<String, HValue>> entrySet() {
-        return map.entrySet();
+        return new SharedSet<Entry<String, HValue>>() {
+            @Override
+            Set<Entry<String, HValue>> set() {
+                return map.entrySet();
+            }
+
+            @Override
+            String key(Entry<String, HValue> e) {
+                return e.getKey();
+            }
+
+            @Override
+            Entry<String, HValue> shared(Entry<String, HValue> e) {
+                return new SharedEntry(e);
+            }
+        };
+    }
+
+    /**
+     * Copies the storage if it is shared, and returns it.
+     */
+    private Map<String, HValue> writable() {
+        if (shared) {
+            map = new LinkedHashMap<>(map);
+            shared = false;
+        }
+        return map;
+    }
+
+    /**
+     * A view of a set of the storage. Iterators that are created while the storage is shared iterate over it without
+     * modifying it, and copy it on the first write. Everything else uses the storage as it currently is.
+     */
+    private abstract class SharedSet<E> extends AbstractSet<E> {
+        /**
+         * Returns the set of the current storage.
+         */
+        abstract Set<E> set();
+
+        abstract String key(E e);
+
+        /**
+         * Returns the element to hand out for the given element of shared storage.
+         */
+        E shared(E e) {
+            return e;
+        }
+
+        @Override
+        public int size() {
+            return set().size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return set().contains(o);
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            if (!shared)
+                return set().iterator();
+
+            final Iterator<E> iter = set().iterator();
+            return new Iterator<E>() {
+                private E last;
+
+                @Override
+                public boolean hasNext() {
+                    return iter.hasNext();
+                }
+
+                @Override
+                public E next() {
+                    last = iter.next();
+                    return shared(last);
+                }
+
+                @Override
+                public void remove() {
+                    if (last == null)
+                        throw new IllegalStateException();
+                    // The iteration continues over the original storage, which is unchanged.
+                    writable().remove(key(last));
+                    last = null;
+                }
+            };
+        }
+    }
+
+    /**
+     * An entry of shared storage, which copies the storage when its value is set.
+     */
+    private class SharedEntry extends AbstractMap.SimpleEntry<String, HValue> {
+        private static final long serialVersionUID = 1L;
+
+        SharedEntry(Entry<String, HValue> e) {
+            super(e);
+        }
+
+        @Override
+        public HValue setValue(HValue value) {
+            writable().put(getKey(), value);
+            return super.setValue(value);
+        }
     }
 
     @Override
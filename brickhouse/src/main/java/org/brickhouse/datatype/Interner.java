@@ -0,0 +1,100 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.datatype;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares instances of equal tag names, units and short values between the rows decoded by the json and zinc readers
+ * and stored by memory tables. Entities tend to repeat the same names and many of the same values, e.g. units, kinds
+ * and references to sites and equipment, so sharing them saves memory. It also makes equality checks, like those made
+ * by filters, usually succeed on identity.
+ * 
+ * Only short strings are interned. Each pool is cleared when it is full, so that values that were common once don't
+ * keep their place forever.
+ */
+public class Interner {
+    /** The longest string that is interned. */
+    public static final int MAX_LENGTH = 64;
+    /** The number of entries in each pool at which it is cleared. */
+    public static final int MAX_SIZE = 200000;
+
+    private static final Map<String, String> strings = new ConcurrentHashMap<>();
+    private static final Map<HValue, HValue> values = new ConcurrentHashMap<>();
+
+    private Interner() {
+        // Static methods only
+    }
+
+    /**
+     * Returns the shared instance of the given string, e.g. a tag name or unit.
+     */
+    public static String string(String s) {
+        if (s == null || s.length() > MAX_LENGTH)
+            return s;
+        String existing = strings.get(s);
+        if (existing != null)
+            return existing;
+        if (strings.size() >= MAX_SIZE)
+            strings.clear();
+        existing = strings.putIfAbsent(s, s);
+        return existing == null ? s : existing;
+    }
+
+    /**
+     * Returns the shared instance of the given value of the given tag, unless the tag is one whose values are unique to
+     * each entity, like id and dis. Sharing those saves nothing, and they would fill the pool on large loads, causing
+     * the common values to be cleared from it.
+     */
+    public static <T extends HValue> T value(String tag, T value) {
+        if ("id".equals(tag) || "dis".equals(tag))
+            return value;
+        return value(value);
+    }
+
+    /**
+     * Returns the shared instance of the given value if it is of a type that is interned: strings, uris, and
+     * references without a display name (since reference equality ignores the name).
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends HValue> T value(T value) {
+        if (value instanceof HString) {
+            String s = ((HString) value).getValue();
+            if (s == null || s.length() > MAX_LENGTH)
+                return value;
+        }
+        else if (value instanceof HReference) {
+            HReference r = (HReference) value;
+            if (r.getDis() != null || r.getId() == null || r.getId().length() > MAX_LENGTH)
+                return value;
+        }
+        else if (value instanceof HUri) {
+            String s = ((HUri) value).getValue();
+            if (s == null || s.length() > MAX_LENGTH)
+                return value;
+        }
+        else
+            return value;
+
+        HValue existing = values.get(value);
+        if (existing != null)
+            return (T) existing;
+        if (values.size() >= MAX_SIZE)
+            values.clear();
+        existing = values.putIfAbsent(value, value);
+        return existing == null ? value : (T) existing;
+    }
+
+    /**
+     * Returns the number of interned strings and values.
+     */
+    public static int size() {
+        return strings.size() + values.size();
+    }
+}
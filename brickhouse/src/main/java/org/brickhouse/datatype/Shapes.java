@@ -0,0 +1,74 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.datatype;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.brickhouse.datatype.CompactMap.Shape;
+
+/**
+ * The shapes shared by the compact maps of a table. Each table keeps its own, so that the shapes are released with the
+ * table and a table with many different key sets doesn't stop the compaction of the others. Shapes are keyed on the
+ * keys in order, so that compaction doesn't change the iteration order of a map.
+ */
+public class Shapes {
+    /** The default maximum number of shapes. */
+    public static final int DEFAULT_MAX = 10000;
+
+    private final Map<List<String>, Shape> shapes = new ConcurrentHashMap<>();
+    private final int max;
+    private final AtomicBoolean full = new AtomicBoolean();
+
+    public Shapes() {
+        this(DEFAULT_MAX);
+    }
+
+    /**
+     * @param max
+     *            the maximum number of shapes. Maps with other key sets are not compacted once it is reached.
+     */
+    public Shapes(int max) {
+        this.max = max;
+    }
+
+    /**
+     * Returns the shape with the given keys in order, or null if there is none and there are already too many shapes.
+     */
+    Shape get(String[] keys) {
+        List<String> key = Arrays.asList(keys);
+        Shape shape = shapes.get(key);
+        if (shape == null) {
+            if (shapes.size() >= max) {
+                if (full.compareAndSet(false, true))
+                    System.out.println("WARN: reached the limit of " + max
+                            + " shapes, so rows with new sets of tags are no longer compacted");
+                return null;
+            }
+            shape = shapes.computeIfAbsent(key, k -> new Shape(keys));
+        }
+        return shape;
+    }
+
+    /**
+     * Returns the number of shapes.
+     */
+    public int size() {
+        return shapes.size();
+    }
+
+    /**
+     * Returns whether the limit has been reached, so that maps with new key sets are no longer compacted.
+     */
+    public boolean isFull() {
+        return full.get();
+    }
+}
@@ -9,9 +9,14 @@ package org.brickhouse.filter;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
 
 import org.brickhouse.ParseException;
+import org.brickhouse.datatype.HDateTime;
 import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HMarker;
+import org.brickhouse.datatype.HNumber;
 import org.brickhouse.datatype.HReference;
 import org.brickhouse.datatype.HString;
 import org.brickhouse.datatype.HValue;
@@ -28,7 +33,24 @@ public abstract class Filter {
     // Encoding
     //////////////////////////////////////////////////////////////////////////
 
+    private static final FilterCache CACHE = new FilterCache(FilterCache.DEFAULT_MAX_SIZE);
+
+    /**
+     * Parse the given filter string. Parsed filters are cached, so repeated calls with the same string return the same
+     * instance.
+     */
     public static Filter parse(String s) {
+        return CACHE.get(s, Filter::parseImpl);
+    }
+
+    /**
+     * Returns the cache used by parse, e.g. for monitoring or to change its size.
+     */
+    public static FilterCache parseCache() {
+        return CACHE;
+    }
+
+    private static Filter parseImpl(String s) {
         try {
             return new ZincReader(s).readFilter();
         }
@@ -165,6 +187,32 @@ public abstract class Filter {
     /* Return if given tags entity matches this query. */
     public abstract boolean include(HMap map, Pather pather);
 
+    /**
+     * Returns a compiled form of this query that is cheaper to evaluate repeatedly. Tag names are resolved, literals are
+     * decoded and like patterns are analysed once, and each node is specialized for its literal type. The result is
+     * cached, so compiling the same filter instance again is free.
+     */
+    public final Matcher compile() {
+        Matcher m = matcher;
+        if (m == null)
+            matcher = m = doCompile();
+        return m;
+    }
+
+    private Matcher matcher;
+
+    /* The plans cached by Planner.compile */
+    volatile Planner.Planned[] planned;
+
+    /* Used to lazily build the compiled form */
+    abstract Matcher doCompile();
+
+    /**
+     * Use the given resolver to determine the candidate entities for this query. A null result means that the
+     * resolver was not able to narrow the candidates, and so all entities need to be considered.
+     */
+    public abstract <T> T resolve(Resolver<T> resolver);
+
     /** String encoding */
     @Override
     public final String toString() {
@@ -205,6 +253,54 @@ public abstract class Filter {
         public HMap find(String ref);
     }
 
+    //////////////////////////////////////////////////////////////////////////
+    // HFilter.Matcher
+    //////////////////////////////////////////////////////////////////////////
+
+    /** Matcher is the compiled form of a filter. */
+    public interface Matcher {
+        /** Return if given tags entity matches the compiled query. */
+        public boolean include(HMap map, Pather pather);
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // HFilter.Resolver
+    //////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Resolver is a callback interface used to narrow down the entities that need to be considered for a query, e.g.
+     * by using indexes. Results may be exact, or a superset of the entities that actually match. Any of the arguments
+     * given to the combining methods may be null, meaning that the candidates could not be narrowed.
+     */
+    public interface Resolver<T> {
+        /** Resolve the entities that have the given tag. */
+        public T has(String tag);
+
+        /** Resolve the entities that do not have the given tag. */
+        public T missing(String tag);
+
+        /** Resolve the entities that have the given tag with a value equal to the given value. */
+        public T eq(String tag, HValue val);
+
+        /**
+         * Resolve the entities that have the given tag with a value of the same type as the bounds and within them.
+         * Either bound may be null, in which case the range is open at that end.
+         */
+        public T range(String tag, HValue from, boolean fromInclusive, HValue to, boolean toInclusive);
+
+        /** Mark the given candidates as a superset of the actual matches. */
+        public T approx(T candidates);
+
+        /** Resolve the entities that are in both of the given candidates. */
+        public T and(T a, T b);
+
+        /** Resolve the entities that are in either of the given candidates. */
+        public T or(T a, T b);
+
+        /** Resolve the entities that are not in the given candidates. */
+        public T not(T a);
+    }
+
     //////////////////////////////////////////////////////////////////////////
     // HFilter.Path
     //////////////////////////////////////////////////////////////////////////
@@ -331,6 +427,16 @@ public abstract class Filter {
             return true;
         }
 
+        @Override
+        public <T> T resolve(Resolver<T> resolver) {
+            return null;
+        }
+
+        @Override
+        Matcher doCompile() {
+            return (map, pather) -> true;
+        }
+
         @Override
         String toStr() {
             return "*";
@@ -367,8 +473,61 @@ public abstract class Filter {
             return doInclude(val);
         }
 
+        @Override
+        public <T> T resolve(Resolver<T> resolver) {
+            if (path.size() == 1)
+                return doResolve(resolver, path.get(0));
+            // The first tag in the path must at least be present.
+            return resolver.approx(resolver.has(path.get(0)));
+        }
+
+        @Override
+        Matcher doCompile() {
+            if (path.size() == 1) {
+                Matcher m = compile(path.get(0));
+                if (m != null)
+                    return m;
+                String name = path.get(0);
+                Predicate<HValue> test = test();
+                return (map, pather) -> test.test(map.get(name));
+            }
+
+            String[] names = new String[path.size()];
+            for (int i = 0; i < names.length; i++)
+                names[i] = path.get(i);
+            Predicate<HValue> test = test();
+            return (map, pather) -> test.test(follow(map, pather, names));
+        }
+
+        /* Resolve the value at the end of the given path names, or null if any part is missing. */
+        static HValue follow(HMap map, Pather pather, String[] names) {
+            HValue val = map.get(names[0]);
+            for (int i = 1; i < names.length; ++i) {
+                if (!(val instanceof HReference))
+                    return null;
+                HMap nt = pather.find(((HReference) val).getId());
+                if (nt == null)
+                    return null;
+                val = nt.get(names[i]);
+            }
+            return val;
+        }
+
         abstract boolean doInclude(HValue val);
 
+        /* Compiled equivalent of doInclude. */
+        abstract Predicate<HValue> test();
+
+        /* Compile a matcher for a single name path that doesn't need a separate value test, or return null. */
+        Matcher compile(String name) {
+            return null;
+        }
+
+        /* Resolve a single name path. By default only the presence of the tag can be determined. */
+        <T> T doResolve(Resolver<T> resolver, String tag) {
+            return resolver.approx(resolver.has(tag));
+        }
+
         final Path path;
     }
 
@@ -386,6 +545,21 @@ public abstract class Filter {
             return v != null;
         }
 
+        @Override
+        final Predicate<HValue> test() {
+            return v -> v != null;
+        }
+
+        @Override
+        final Matcher compile(String name) {
+            return (map, pather) -> map.get(name) != null;
+        }
+
+        @Override
+        final <T> T doResolve(Resolver<T> resolver, String tag) {
+            return resolver.has(tag);
+        }
+
         @Override
         final String toStr() {
             return path.toString();
@@ -406,6 +580,24 @@ public abstract class Filter {
             return v == null;
         }
 
+        @Override
+        final Predicate<HValue> test() {
+            return v -> v == null;
+        }
+
+        @Override
+        final Matcher compile(String name) {
+            return (map, pather) -> map.get(name) == null;
+        }
+
+        @Override
+        public <T> T resolve(Resolver<T> resolver) {
+            // A missing intermediate reference also matches, so only single name paths can be resolved.
+            if (path.size() == 1)
+                return resolver.missing(path.get(0));
+            return null;
+        }
+
         @Override
         final String toStr() {
             return "not " + path;
@@ -444,11 +636,37 @@ public abstract class Filter {
             return v.compareTo((T) val);
         }
 
+        /*
+         * Compile a comparison test. Numbers and date times are compared directly by their primitive values, and other
+         * comparable types by compareTo. The number comparison must be consistent with HNumber.compareTo, under which
+         * NaN compares as equal.
+         */
+        final Predicate<HValue> compile(IntPredicate cmp, DoubleComparison numbers) {
+            if (val instanceof HNumber) {
+                double d = ((HNumber) val).getValue();
+                return v -> v != null && v.getClass() == HNumber.class && numbers.test(((HNumber) v).getValue(), d);
+            }
+            if (val instanceof HDateTime) {
+                long millis = ((HDateTime) val).getMillis();
+                return v -> v != null && v.getClass() == HDateTime.class
+                        && cmp.test(Long.compare(((HDateTime) v).getMillis(), millis));
+            }
+            if (val instanceof Comparable) {
+                Class<?> type = val.getClass();
+                return v -> v != null && v.getClass() == type && cmp.test(compareTo((Comparable<?>) v));
+            }
+            return v -> false;
+        }
+
         abstract String cmpStr();
 
         final HValue val;
     }
 
+    interface DoubleComparison {
+        boolean test(double a, double b);
+    }
+
     //////////////////////////////////////////////////////////////////////////
     // Eq
     //////////////////////////////////////////////////////////////////////////
@@ -467,6 +685,27 @@ public abstract class Filter {
         final boolean doInclude(HValue v) {
             return v != null && v.equals(val);
         }
+
+        @Override
+        final Predicate<HValue> test() {
+            if (val == HMarker.VALUE)
+                return v -> v == HMarker.VALUE;
+            if (val instanceof HString) {
+                String s = ((HString) val).getValue();
+                return v -> v instanceof HString && s.equals(((HString) v).getValue());
+            }
+            if (val instanceof HReference) {
+                String id = ((HReference) val).getId();
+                return v -> v instanceof HReference && id.equals(((HReference) v).getId());
+            }
+            HValue val = this.val;
+            return v -> val.equals(v);
+        }
+
+        @Override
+        final <T> T doResolve(Resolver<T> resolver, String tag) {
+            return resolver.eq(tag, val);
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -487,6 +726,12 @@ public abstract class Filter {
         final boolean doInclude(HValue v) {
             return v != null && !v.equals(val);
         }
+
+        @Override
+        final Predicate<HValue> test() {
+            HValue val = this.val;
+            return v -> v != null && !val.equals(v);
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -507,6 +752,18 @@ public abstract class Filter {
         final boolean doInclude(HValue v) {
             return sameType(v) && comparable(v) && compareTo((Comparable<?>) v) < 0;
         }
+
+        @Override
+        final Predicate<HValue> test() {
+            return compile(c -> c < 0, (n, d) -> n < d);
+        }
+
+        @Override
+        final <T> T doResolve(Resolver<T> resolver, String tag) {
+            if (!(val instanceof Comparable))
+                return super.doResolve(resolver, tag);
+            return resolver.range(tag, null, false, val, false);
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -527,6 +784,18 @@ public abstract class Filter {
         final boolean doInclude(HValue v) {
             return sameType(v) && comparable(v) && compareTo((Comparable<?>) v) <= 0;
         }
+
+        @Override
+        final Predicate<HValue> test() {
+            return compile(c -> c <= 0, (n, d) -> !(n > d));
+        }
+
+        @Override
+        final <T> T doResolve(Resolver<T> resolver, String tag) {
+            if (!(val instanceof Comparable))
+                return super.doResolve(resolver, tag);
+            return resolver.range(tag, null, false, val, true);
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -547,6 +816,18 @@ public abstract class Filter {
         final boolean doInclude(HValue v) {
             return sameType(v) && comparable(v) && compareTo((Comparable<?>) v) > 0;
         }
+
+        @Override
+        final Predicate<HValue> test() {
+            return compile(c -> c > 0, (n, d) -> n > d);
+        }
+
+        @Override
+        final <T> T doResolve(Resolver<T> resolver, String tag) {
+            if (!(val instanceof Comparable))
+                return super.doResolve(resolver, tag);
+            return resolver.range(tag, val, false, null, false);
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -567,6 +848,18 @@ public abstract class Filter {
         final boolean doInclude(HValue v) {
             return sameType(v) && comparable(v) && compareTo((Comparable<?>) v) >= 0;
         }
+
+        @Override
+        final Predicate<HValue> test() {
+            return compile(c -> c >= 0, (n, d) -> !(n < d));
+        }
+
+        @Override
+        final <T> T doResolve(Resolver<T> resolver, String tag) {
+            if (!(val instanceof Comparable))
+                return super.doResolve(resolver, tag);
+            return resolver.range(tag, val, true, null, false);
+        }
     }
 
     static class Like extends CmpFilter {
@@ -610,6 +903,22 @@ public abstract class Filter {
             return compare(((HString) v).getValue());
         }
 
+        @Override
+        final Predicate<HValue> test() {
+            Predicate<String> pattern = pattern();
+            return v -> v != null && v.getClass() == HString.class && pattern.test(((HString) v).getValue());
+        }
+
+        /* Compiled equivalent of compare. */
+        Predicate<String> pattern() {
+            String lit = this.lit;
+            if (starting && ending)
+                return s -> s.contains(lit);
+            if (starting)
+                return s -> s.endsWith(lit);
+            return s -> s.startsWith(lit);
+        }
+
         boolean compare(String s) {
             if (starting && ending)
                 return s.contains(lit);
@@ -636,6 +945,12 @@ public abstract class Filter {
         boolean compare(String s) {
             return super.compare(s.toUpperCase());
         }
+
+        @Override
+        Predicate<String> pattern() {
+            Predicate<String> pattern = super.pattern();
+            return s -> pattern.test(s.toUpperCase());
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -665,6 +980,22 @@ public abstract class Filter {
             return s.toString();
         }
 
+        /* Compile the children of this node and of any directly nested nodes of the same type, in order. */
+        final Matcher[] flatten() {
+            List<Matcher> ms = new ArrayList<>();
+            flatten(this, ms);
+            return ms.toArray(new Matcher[ms.size()]);
+        }
+
+        private void flatten(Filter f, List<Matcher> ms) {
+            if (f.getClass() == getClass()) {
+                flatten(((CompoundFilter) f).a, ms);
+                flatten(((CompoundFilter) f).b, ms);
+            }
+            else
+                ms.add(f.compile());
+        }
+
         final Filter a;
         final Filter b;
     }
@@ -687,6 +1018,28 @@ public abstract class Filter {
         public final boolean include(HMap map, Pather pather) {
             return a.include(map, pather) && b.include(map, pather);
         }
+
+        @Override
+        public final <T> T resolve(Resolver<T> resolver) {
+            return resolver.and(a.resolve(resolver), b.resolve(resolver));
+        }
+
+        @Override
+        final Matcher doCompile() {
+            Matcher[] ms = flatten();
+            if (ms.length == 2) {
+                Matcher a = ms[0];
+                Matcher b = ms[1];
+                return (map, pather) -> a.include(map, pather) && b.include(map, pather);
+            }
+            return (map, pather) -> {
+                for (Matcher m : ms) {
+                    if (!m.include(map, pather))
+                        return false;
+                }
+                return true;
+            };
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -707,6 +1060,28 @@ public abstract class Filter {
         public final boolean include(HMap map, Pather pather) {
             return a.include(map, pather) || b.include(map, pather);
         }
+
+        @Override
+        public final <T> T resolve(Resolver<T> resolver) {
+            return resolver.or(a.resolve(resolver), b.resolve(resolver));
+        }
+
+        @Override
+        final Matcher doCompile() {
+            Matcher[] ms = flatten();
+            if (ms.length == 2) {
+                Matcher a = ms[0];
+                Matcher b = ms[1];
+                return (map, pather) -> a.include(map, pather) || b.include(map, pather);
+            }
+            return (map, pather) -> {
+                for (Matcher m : ms) {
+                    if (m.include(map, pather))
+                        return true;
+                }
+                return false;
+            };
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -725,6 +1100,17 @@ public abstract class Filter {
             return !f.include(map, pather);
         }
 
+        @Override
+        public <T> T resolve(Resolver<T> resolver) {
+            return resolver.not(f.resolve(resolver));
+        }
+
+        @Override
+        Matcher doCompile() {
+            Matcher m = f.compile();
+            return (map, pather) -> !m.include(map, pather);
+        }
+
         @Override
         String toStr() {
             StringBuilder s = new StringBuilder();
@@ -0,0 +1,160 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A bounded, approximately least recently used cache of parsed filters keyed by their source strings. Filters are
+ * immutable, so cached instances can be shared freely, which also lets anything cached on the instances (like their
+ * compiled form) be reused. Hit, miss and eviction counts are kept for monitoring.
+ * 
+ * Hits don't lock: each entry records when it was last used, and the least recently used entries are found by a scan
+ * when a miss takes the cache over its size. Hits that race with the scan may not save their entry. Each scan evicts a
+ * tenth of the entries, so that a run of misses scans once per many misses rather than on every one.
+ */
+public class FilterCache {
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    static class Entry {
+        final Filter filter;
+        volatile long used = System.nanoTime();
+
+        Entry(Filter filter) {
+            this.filter = filter;
+        }
+    }
+
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    /** Serializes evictions, so that concurrent misses don't evict more than they need to. */
+    private final Object evictLock = new Object();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile int maxSize;
+
+    public FilterCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached filter for the given string, or parses and caches it. Strings that fail to parse are not
+     * cached.
+     */
+    public Filter get(String s, Function<String, Filter> parser) {
+        Entry entry = cache.get(s);
+        if (entry != null) {
+            entry.used = System.nanoTime();
+            hits.increment();
+            return entry.filter;
+        }
+
+        // Concurrent misses on the same string may parse it more than once, but the results are equivalent.
+        misses.increment();
+        Filter filter = parser.apply(s);
+        if (maxSize > 0) {
+            Entry existing = cache.putIfAbsent(s, new Entry(filter));
+            if (existing != null)
+                filter = existing.filter;
+            else if (cache.size() > maxSize)
+                trim();
+        }
+        return filter;
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum number of filters to cache. A size of 0 disables caching. If the cache is currently larger, the
+     * least recently used filters are evicted.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Evicts the least recently used tenth of the entries if the cache is over its maximum size.
+     */
+    private void trim() {
+        synchronized (evictLock) {
+            // A concurrent miss may have already trimmed the cache.
+            int max = maxSize;
+            if (cache.size() > max)
+                evict(max - max / 10);
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is no larger than the given size.
+     */
+    private void evict(int size) {
+        synchronized (evictLock) {
+            int excess = cache.size() - size;
+            if (excess <= 0)
+                return;
+
+            // Take the times first, since hits may change them while the entries are being sorted.
+            List<Used> used = new ArrayList<>(cache.size());
+            for (Map.Entry<String, Entry> e : cache.entrySet())
+                used.add(new Used(e.getKey(), e.getValue()));
+            used.sort((a, b) -> Long.signum(a.time - b.time));
+
+            for (int i = 0; i < excess && i < used.size(); i++) {
+                if (cache.remove(used.get(i).key, used.get(i).entry))
+                    evictions.increment();
+            }
+        }
+    }
+
+    private static class Used {
+        final String key;
+        final Entry entry;
+        final long time;
+
+        Used(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+            time = entry.used;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FilterCache [size=" + size() + ", maxSize=" + maxSize + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
+    }
+}
@@ -0,0 +1,331 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.filter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.brickhouse.datatype.HValue;
+import org.brickhouse.filter.Filter.And;
+import org.brickhouse.filter.Filter.CmpFilter;
+import org.brickhouse.filter.Filter.CompoundFilter;
+import org.brickhouse.filter.Filter.Eq;
+import org.brickhouse.filter.Filter.Has;
+import org.brickhouse.filter.Filter.Like;
+import org.brickhouse.filter.Filter.Matcher;
+import org.brickhouse.filter.Filter.Missing;
+import org.brickhouse.filter.Filter.Ne;
+import org.brickhouse.filter.Filter.Negate;
+import org.brickhouse.filter.Filter.Or;
+import org.brickhouse.filter.Filter.PathFilter;
+
+/**
+ * Rewrites filters so that they are cheaper to evaluate. Nested and/or filters are flattened, and their children are
+ * reordered so that an and evaluates its most selective and cheapest children first (and so fails fast), and an or
+ * evaluates its least selective and cheapest children first (and so succeeds fast). Filters that traverse paths
+ * require lookups of other entities, and so are costed accordingly and tend to be pushed last.
+ * 
+ * Selectivity estimates come from the statistics given to the planner, which are typically collected by a table's
+ * indexes. The compiled plan of a filter is cached on the filter instance by compile, and is replanned once enough
+ * entities have changed, or once the planner is invalidated, for the statistics to have moved.
+ */
+public class Planner {
+    /** Relative cost of checking a tag's presence. */
+    static final double TAG_COST = 1;
+    /** Relative cost of comparing a tag value. */
+    static final double CMP_COST = 2;
+    /** Relative cost of matching a like pattern. */
+    static final double LIKE_COST = 4;
+    /** Relative cost of resolving a reference in a path. */
+    static final double PATH_COST = 20;
+
+    /** Selectivity used when there are no statistics for a tag. */
+    static final double UNKNOWN_SELECTIVITY = 0.5;
+    /** Fraction of tagged entities assumed to match an equality when there are no value statistics. */
+    static final double EQ_SELECTIVITY = 0.1;
+    /** Fraction of tagged entities assumed to match a range comparison. */
+    static final double RANGE_SELECTIVITY = 0.33;
+    /** Fraction of tagged entities assumed to match a like pattern. */
+    static final double LIKE_SELECTIVITY = 0.25;
+
+    /** Fraction of the entities that must have changed since a filter was planned for it to be planned again. */
+    static final double REPLAN_FRACTION = 0.1;
+    /** Minimum number of changes after which a filter is planned again, so that small tables don't replan often. */
+    static final int REPLAN_MIN_CHANGES = 100;
+
+    /**
+     * Statistics is a callback interface used by the planner to estimate selectivity.
+     */
+    public interface Statistics {
+        /** The total number of entities. */
+        public int size();
+
+        /** The number of entities that have the given tag, or -1 if not known. */
+        public int count(String tag);
+
+        /** The number of entities that have the given tag value, or -1 if not known. */
+        default public int count(String tag, HValue val) {
+            return -1;
+        }
+    }
+
+    /** The maximum number of planners whose plans are cached on each filter. */
+    static final int MAX_PLANS = 4;
+
+    private static final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * A compiled plan cached on a filter, along with the state of the planner when it was made. The planner is
+     * identified by id rather than referenced, so that filters in the FilterCache don't keep the planner's statistics,
+     * and the table behind them, reachable.
+     */
+    static class Planned {
+        final long planner;
+        final long epoch;
+        final long changes;
+        final Matcher matcher;
+
+        Planned(long planner, long epoch, long changes, Matcher matcher) {
+            this.planner = planner;
+            this.epoch = epoch;
+            this.changes = changes;
+            this.matcher = matcher;
+        }
+    }
+
+    private final long id = nextId.incrementAndGet();
+    private final Statistics stats;
+    private final LongAdder changes = new LongAdder();
+    private final AtomicLong epoch = new AtomicLong();
+
+    public Planner(Statistics stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Returns the compiled plan of the given filter. The plan is cached on the filter instance, so filters that are
+     * reused, e.g. from the FilterCache, are only planned and compiled again when the statistics may have changed. A
+     * filter keeps the plans of the last few planners that compiled it, so that a filter shared by tables isn't
+     * replanned on each use.
+     */
+    public Matcher compile(Filter filter) {
+        long e = epoch.get();
+        long c = changes.sum();
+        Planned[] plans = filter.planned;
+        if (plans != null) {
+            for (Planned p : plans) {
+                if (p.planner == id) {
+                    if (p.epoch == e && c - p.changes < Math.max(REPLAN_MIN_CHANGES, REPLAN_FRACTION * stats.size()))
+                        return p.matcher;
+                    break;
+                }
+            }
+        }
+
+        Matcher m = plan(filter).compile();
+
+        // Most recent first, replacing this planner's previous plan. Concurrent compiles may lose a plan, which only
+        // costs a replan.
+        List<Planned> list = new ArrayList<>(MAX_PLANS);
+        list.add(new Planned(id, e, c, m));
+        if (plans != null) {
+            for (Planned p : plans) {
+                if (p.planner != id && list.size() < MAX_PLANS)
+                    list.add(p);
+            }
+        }
+        filter.planned = list.toArray(new Planned[list.size()]);
+        return m;
+    }
+
+    /**
+     * Records a change to an entity, which may change the statistics.
+     */
+    public void changed() {
+        changes.increment();
+    }
+
+    /**
+     * Discards all cached plans, e.g. after an index is added or the entities are reloaded.
+     */
+    public void invalidate() {
+        epoch.incrementAndGet();
+    }
+
+    /**
+     * Returns a filter that is equivalent to the given filter, but that is expected to be cheaper to evaluate.
+     */
+    public Filter plan(Filter filter) {
+        Filter plan = estimate(filter).filter;
+        // Return the original instance if nothing changed so that anything cached on it, like its compiled form, is
+        // reused.
+        return plan.equals(filter) ? filter : plan;
+    }
+
+    /**
+     * Returns a description of the plan for the given filter, including the estimated number of matching entities and
+     * the relative evaluation cost of each node.
+     */
+    public String explain(Filter filter) {
+        Estimate e = estimate(filter);
+        StringBuilder sb = new StringBuilder();
+        sb.append("Plan: ").append(e.filter).append('\n');
+        explain(sb, e, 1);
+        return sb.toString();
+    }
+
+    private void explain(StringBuilder sb, Estimate e, int depth) {
+        for (int i = 0; i < depth; i++)
+            sb.append("  ");
+        if (e.children == null)
+            sb.append(e.filter);
+        else
+            sb.append(e.filter instanceof And ? "and" : e.filter instanceof Or ? "or" : "not");
+        sb.append(String.format(" [rows ~%.0f, selectivity %.4f, cost %.2f]", e.selectivity * stats.size(),
+                e.selectivity, e.cost)).append('\n');
+        if (e.children != null) {
+            for (Estimate child : e.children)
+                explain(sb, child, depth + 1);
+        }
+    }
+
+    //
+    // Estimation
+    //
+    static class Estimate {
+        final Filter filter;
+        final double selectivity;
+        final double cost;
+        final List<Estimate> children;
+
+        Estimate(Filter filter, double selectivity, double cost, List<Estimate> children) {
+            this.filter = filter;
+            this.selectivity = selectivity;
+            this.cost = cost;
+            this.children = children;
+        }
+    }
+
+    Estimate estimate(Filter filter) {
+        if (filter instanceof And)
+            return estimateAnd(filter);
+        if (filter instanceof Or)
+            return estimateOr(filter);
+        if (filter instanceof Negate) {
+            Estimate e = estimate(((Negate) filter).f);
+            List<Estimate> children = new ArrayList<>();
+            children.add(e);
+            return new Estimate(e.filter == ((Negate) filter).f ? filter : Filter.negate(e.filter),
+                    1 - e.selectivity, e.cost, children);
+        }
+        if (filter instanceof PathFilter)
+            return estimatePath((PathFilter) filter);
+        // All
+        return new Estimate(filter, 1, 0, null);
+    }
+
+    private Estimate estimateAnd(Filter filter) {
+        List<Estimate> children = new ArrayList<>();
+        for (Filter f : flatten(filter, And.class, new ArrayList<>()))
+            children.add(estimate(f));
+
+        // Order by cost per unit of rejection. Children that always match go last.
+        children.sort(Comparator.comparingDouble(e -> e.cost / Math.max(1 - e.selectivity, 1e-9)));
+
+        double selectivity = 1;
+        double cost = 0;
+        for (Estimate e : children) {
+            cost += selectivity * e.cost;
+            selectivity *= e.selectivity;
+        }
+
+        Filter result = children.get(children.size() - 1).filter;
+        for (int i = children.size() - 2; i >= 0; i--)
+            result = new And(children.get(i).filter, result);
+
+        return new Estimate(result, selectivity, cost, children);
+    }
+
+    private Estimate estimateOr(Filter filter) {
+        List<Estimate> children = new ArrayList<>();
+        for (Filter f : flatten(filter, Or.class, new ArrayList<>()))
+            children.add(estimate(f));
+
+        // Order by cost per unit of acceptance. Children that never match go last.
+        children.sort(Comparator.comparingDouble(e -> e.cost / Math.max(e.selectivity, 1e-9)));
+
+        double rejected = 1;
+        double cost = 0;
+        for (Estimate e : children) {
+            cost += rejected * e.cost;
+            rejected *= 1 - e.selectivity;
+        }
+
+        Filter result = children.get(children.size() - 1).filter;
+        for (int i = children.size() - 2; i >= 0; i--)
+            result = new Or(children.get(i).filter, result);
+
+        return new Estimate(result, 1 - rejected, cost, children);
+    }
+
+    private static List<Filter> flatten(Filter filter, Class<? extends CompoundFilter> type, List<Filter> result) {
+        if (type.isInstance(filter)) {
+            CompoundFilter cf = (CompoundFilter) filter;
+            flatten(cf.a, type, result);
+            flatten(cf.b, type, result);
+        }
+        else
+            result.add(filter);
+        return result;
+    }
+
+    private Estimate estimatePath(PathFilter filter) {
+        String tag = filter.path.get(0);
+        double has = fraction(stats.count(tag));
+        double cost = filter.path.size() == 1 ? 0 : PATH_COST * (filter.path.size() - 1);
+        double selectivity;
+
+        if (filter instanceof Has) {
+            selectivity = has;
+            cost += TAG_COST;
+        }
+        else if (filter instanceof Missing) {
+            selectivity = 1 - has;
+            cost += TAG_COST;
+        }
+        else if (filter instanceof Eq) {
+            int count = filter.path.size() == 1 ? stats.count(tag, ((CmpFilter) filter).val) : -1;
+            selectivity = count >= 0 ? fraction(count) : has * EQ_SELECTIVITY;
+            cost += CMP_COST;
+        }
+        else if (filter instanceof Ne) {
+            selectivity = has * (1 - EQ_SELECTIVITY);
+            cost += CMP_COST;
+        }
+        else if (filter instanceof Like) {
+            selectivity = has * LIKE_SELECTIVITY;
+            cost += LIKE_COST;
+        }
+        else {
+            selectivity = has * RANGE_SELECTIVITY;
+            cost += CMP_COST;
+        }
+
+        return new Estimate(filter, selectivity, cost, null);
+    }
+
+    private double fraction(int count) {
+        int size = stats.size();
+        if (count < 0 || size <= 0)
+            return UNKNOWN_SELECTIVITY;
+        return Math.min(1, (double) count / size);
+    }
+}
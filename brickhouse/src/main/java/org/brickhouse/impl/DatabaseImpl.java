@@ -22,9 +22,15 @@ public abstract class DatabaseImpl implements Database {
 
     private final BasicDataSource ds;
     protected final JdbcTemplate jt;
+    protected final SqlDialect dialect;
 
     public DatabaseImpl(BasicDataSource ds) {
+        this(ds, null);
+    }
+
+    public DatabaseImpl(BasicDataSource ds, SqlDialect dialect) {
         this.ds = ds;
+        this.dialect = dialect;
         jt = new JdbcTemplate(ds);
     }
 
@@ -45,7 +51,7 @@ public abstract class DatabaseImpl implements Database {
         if (stats && !tableExists(name + STATS_SUFFIX))
             createStatsTable(name);
 
-        return new SqlTable(jt, name, setDis, stats);
+        return new SqlTable(jt, name, setDis, stats, getDialect(name));
     }
 
     @Override
@@ -77,6 +83,13 @@ public abstract class DatabaseImpl implements Database {
         });
     }
 
+    /**
+     * Returns the dialect to use for the given table. Override if the dialect depends upon how the table is stored.
+     */
+    protected SqlDialect getDialect(String name) {
+        return dialect;
+    }
+
     abstract protected void createTable(String name);
 
     abstract protected void createStatsTable(String name);
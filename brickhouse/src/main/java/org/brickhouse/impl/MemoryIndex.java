@@ -0,0 +1,506 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HValue;
+import org.brickhouse.filter.Filter.Resolver;
+
+/**
+ * Inverted indexes over the rows of a memory table. The tag index maps every tag name to the ids of the entities that
+ * have the tag, and is used to resolve filters to candidate sets using set intersection and union rather than by
+ * scanning. Value indexes can additionally be declared for specific tags, e.g. an equality index that maps each value
+ * of the tag to the ids of the entities that have it, or a range index that keeps the values in sorted order.
+ * 
+ * Index updates for a given id must be serialized by the caller.
+ */
+class MemoryIndex implements Resolver<MemoryIndex.Candidates> {
+    private final Map<String, Set<String>> tags = new ConcurrentHashMap<>();
+    private final Map<String, List<ValueIndex>> valueIndexes = new ConcurrentHashMap<>();
+    private final Map<String, EqualityIndex> equalityIndexes = new ConcurrentHashMap<>();
+    private final Map<String, RangeIndex> rangeIndexes = new ConcurrentHashMap<>();
+
+    //
+    // Maintenance
+    //
+    void add(String id, HMap row) {
+        for (Entry<String, HValue> e : row.entrySet()) {
+            // Added within the compute so that it doesn't race with the removal of the set when it becomes empty.
+            tags.compute(e.getKey(), (k, ids) -> {
+                if (ids == null)
+                    ids = ConcurrentHashMap.newKeySet();
+                ids.add(id);
+                return ids;
+            });
+
+            List<ValueIndex> vis = valueIndexes.get(e.getKey());
+            if (vis != null) {
+                for (ValueIndex vi : vis)
+                    vi.add(id, e.getValue());
+            }
+        }
+    }
+
+    void remove(String id, HMap row) {
+        update(id, row, null);
+    }
+
+    void update(String id, HMap oldRow, HMap newRow) {
+        if (oldRow != null) {
+            for (Entry<String, HValue> e : oldRow.entrySet()) {
+                HValue newValue = newRow == null ? null : newRow.get(e.getKey());
+                if (newValue == null) {
+                    // Remove tag entries that become empty so that the index doesn't accumulate dropped tags.
+                    tags.computeIfPresent(e.getKey(), (k, ids) -> {
+                        ids.remove(id);
+                        return ids.isEmpty() ? null : ids;
+                    });
+                }
+
+                List<ValueIndex> vis = valueIndexes.get(e.getKey());
+                if (vis != null && !e.getValue().equals(newValue)) {
+                    for (ValueIndex vi : vis)
+                        vi.remove(id, e.getValue());
+                }
+            }
+        }
+        if (newRow != null)
+            add(id, newRow);
+    }
+
+    void clear() {
+        tags.clear();
+        for (List<ValueIndex> vis : valueIndexes.values()) {
+            for (ValueIndex vi : vis)
+                vi.clear();
+        }
+    }
+
+    /**
+     * Creates an equality index on the given tag. The index is returned so that the caller can populate it with the
+     * existing rows and then mark it as ready. Returns null if the tag is already indexed.
+     */
+    EqualityIndex addEqualityIndex(String tag) {
+        EqualityIndex ei = new EqualityIndex(tag);
+        if (equalityIndexes.putIfAbsent(tag, ei) != null)
+            return null;
+        valueIndexes.computeIfAbsent(tag, k -> new CopyOnWriteArrayList<>()).add(ei);
+        return ei;
+    }
+
+    /**
+     * Creates a range index on the given tag. As with equality indexes, the caller populates the index and marks it as
+     * ready. Returns null if the tag is already indexed.
+     */
+    RangeIndex addRangeIndex(String tag) {
+        RangeIndex ri = new RangeIndex(tag);
+        if (rangeIndexes.putIfAbsent(tag, ri) != null)
+            return null;
+        valueIndexes.computeIfAbsent(tag, k -> new CopyOnWriteArrayList<>()).add(ri);
+        return ri;
+    }
+
+    /**
+     * Returns the number of distinct tags of the entities.
+     */
+    int tagCount() {
+        return tags.size();
+    }
+
+    /**
+     * Returns the number of entities that have the given tag.
+     */
+    int count(String tag) {
+        Set<String> ids = tags.get(tag);
+        return ids == null ? 0 : ids.size();
+    }
+
+    /**
+     * Returns the number of entities that have the given tag value, or -1 if the tag does not have an equality index.
+     */
+    int count(String tag, HValue val) {
+        EqualityIndex ei = equalityIndexes.get(tag);
+        if (ei == null || !ei.ready)
+            return -1;
+        return ei.get(val).size();
+    }
+
+    //
+    // Resolver
+    //
+    @Override
+    public Candidates has(String tag) {
+        Set<String> ids = tags.get(tag);
+        if (ids == null)
+            ids = Collections.emptySet();
+        return new Candidates(ids, false, true);
+    }
+
+    @Override
+    public Candidates missing(String tag) {
+        return has(tag).negate();
+    }
+
+    @Override
+    public Candidates eq(String tag, HValue val) {
+        EqualityIndex ei = equalityIndexes.get(tag);
+        if (ei == null || !ei.ready)
+            return approx(has(tag));
+        return new Candidates(ei.get(val), false, true);
+    }
+
+    @Override
+    public Candidates range(String tag, HValue from, boolean fromInclusive, HValue to, boolean toInclusive) {
+        RangeIndex ri = rangeIndexes.get(tag);
+        if (ri != null && ri.ready) {
+            Set<String> ids = ri.range(from, fromInclusive, to, toInclusive);
+            if (ids != null)
+                return new Candidates(ids, false, true);
+        }
+        return approx(has(tag));
+    }
+
+    @Override
+    public Candidates approx(Candidates c) {
+        if (c == null || !c.exact)
+            return c;
+        return new Candidates(c.ids, c.complement, false);
+    }
+
+    @Override
+    public Candidates and(Candidates a, Candidates b) {
+        if (a == null)
+            return approx(b);
+        if (b == null)
+            return approx(a);
+
+        boolean exact = a.exact && b.exact;
+        if (!a.complement && !b.complement)
+            return new Candidates(intersect(a.ids, b.ids), false, exact);
+        if (!a.complement)
+            return new Candidates(subtract(a.ids, b.ids), false, exact);
+        if (!b.complement)
+            return new Candidates(subtract(b.ids, a.ids), false, exact);
+        return new Candidates(union(a.ids, b.ids), true, exact);
+    }
+
+    @Override
+    public Candidates or(Candidates a, Candidates b) {
+        if (a == null || b == null)
+            return null;
+
+        boolean exact = a.exact && b.exact;
+        if (!a.complement && !b.complement)
+            return new Candidates(union(a.ids, b.ids), false, exact);
+        if (!a.complement)
+            return new Candidates(subtract(b.ids, a.ids), true, exact);
+        if (!b.complement)
+            return new Candidates(subtract(a.ids, b.ids), true, exact);
+        return new Candidates(intersect(a.ids, b.ids), true, exact);
+    }
+
+    @Override
+    public Candidates not(Candidates c) {
+        // The complement of a superset is not a superset of the complement.
+        if (c == null || !c.exact)
+            return null;
+        return c.negate();
+    }
+
+    /**
+     * Returns a resolver that describes how filters are resolved by this index, for use in query plan explanations.
+     */
+    Resolver<String> explainer() {
+        return new Resolver<String>() {
+            @Override
+            public String has(String tag) {
+                return "tag(" + tag + ")";
+            }
+
+            @Override
+            public String missing(String tag) {
+                return "not tag(" + tag + ")";
+            }
+
+            @Override
+            public String eq(String tag, HValue val) {
+                EqualityIndex ei = equalityIndexes.get(tag);
+                if (ei == null || !ei.ready)
+                    return approx(has(tag));
+                return "eq(" + tag + "==" + val + ")";
+            }
+
+            @Override
+            public String range(String tag, HValue from, boolean fromInclusive, HValue to, boolean toInclusive) {
+                RangeIndex ri = rangeIndexes.get(tag);
+                if (ri == null || !ri.ready)
+                    return approx(has(tag));
+                return "range(" + tag + (from == null ? "" : (fromInclusive ? ">=" : ">") + from)
+                        + (to == null ? "" : (toInclusive ? "<=" : "<") + to) + ")";
+            }
+
+            @Override
+            public String approx(String a) {
+                if (a == null || a.endsWith("~"))
+                    return a;
+                return a + "~";
+            }
+
+            @Override
+            public String and(String a, String b) {
+                if (a == null)
+                    return approx(b);
+                if (b == null)
+                    return approx(a);
+                return "(" + a + " and " + b + ")";
+            }
+
+            @Override
+            public String or(String a, String b) {
+                if (a == null || b == null)
+                    return null;
+                return "(" + a + " or " + b + ")";
+            }
+
+            @Override
+            public String not(String a) {
+                if (a == null || a.endsWith("~"))
+                    return null;
+                return "not " + a;
+            }
+        };
+    }
+
+    private static Set<String> intersect(Set<String> a, Set<String> b) {
+        if (a.size() > b.size()) {
+            Set<String> t = a;
+            a = b;
+            b = t;
+        }
+        Set<String> result = new HashSet<>();
+        for (String id : a) {
+            if (b.contains(id))
+                result.add(id);
+        }
+        return result;
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> result = new HashSet<>(a);
+        result.addAll(b);
+        return result;
+    }
+
+    private static Set<String> subtract(Set<String> a, Set<String> b) {
+        Set<String> result = new HashSet<>();
+        for (String id : a) {
+            if (!b.contains(id))
+                result.add(id);
+        }
+        return result;
+    }
+
+    /**
+     * The result of resolving a filter against the index. If complement is true, the candidates are all entities
+     * except those in the id set. If exact is false, the candidates are a superset of the actual matches.
+     */
+    static class Candidates {
+        final Set<String> ids;
+        final boolean complement;
+        final boolean exact;
+
+        Candidates(Set<String> ids, boolean complement, boolean exact) {
+            this.ids = ids;
+            this.complement = complement;
+            this.exact = exact;
+        }
+
+        Candidates negate() {
+            return new Candidates(ids, !complement, exact);
+        }
+    }
+
+    /**
+     * Base class for indexes over the values of a specific tag. Values are added and removed as rows change, but the
+     * index is only used for resolution once it has been populated with the existing rows and marked as ready.
+     */
+    static abstract class ValueIndex {
+        final String tag;
+        volatile boolean ready;
+
+        ValueIndex(String tag) {
+            this.tag = tag;
+        }
+
+        abstract void add(String id, HValue value);
+
+        abstract void remove(String id, HValue value);
+
+        abstract void clear();
+    }
+
+    /**
+     * Maps the values of a tag to the ids of the entities with that value.
+     */
+    static class EqualityIndex extends ValueIndex {
+        private final Map<HValue, Set<String>> values = new ConcurrentHashMap<>();
+
+        EqualityIndex(String tag) {
+            super(tag);
+        }
+
+        @Override
+        void add(String id, HValue value) {
+            if (value == null)
+                return;
+            values.compute(value, (k, ids) -> {
+                if (ids == null)
+                    ids = ConcurrentHashMap.newKeySet();
+                ids.add(id);
+                return ids;
+            });
+        }
+
+        @Override
+        void remove(String id, HValue value) {
+            if (value == null)
+                return;
+            // Remove value entries that become empty so that the index doesn't accumulate old values.
+            values.computeIfPresent(value, (k, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+
+        @Override
+        void clear() {
+            values.clear();
+        }
+
+        Set<String> get(HValue value) {
+            Set<String> ids = values.get(value);
+            if (ids == null)
+                return Collections.emptySet();
+            return ids;
+        }
+    }
+
+    /**
+     * Keeps the values of a tag in sorted order so that comparisons can be resolved with range lookups. Values are
+     * kept separately by type, since comparison filters only match values of the same type. Values that are not
+     * comparable are not indexed.
+     * 
+     * Changes are synchronized so that empty value entries can be safely removed. Lookups are not.
+     */
+    static class RangeIndex extends ValueIndex {
+        private final Map<Class<?>, NavigableMap<HValue, Set<String>>> sorted = new ConcurrentHashMap<>();
+
+        // NaN compares as equal to every number, and so cannot be kept in sorted order.
+        private final Set<String> nans = ConcurrentHashMap.newKeySet();
+
+        RangeIndex(String tag) {
+            super(tag);
+        }
+
+        @Override
+        synchronized void add(String id, HValue value) {
+            if (!(value instanceof Comparable))
+                return;
+            if (isNaN(value)) {
+                nans.add(id);
+                return;
+            }
+
+            NavigableMap<HValue, Set<String>> values = sorted.computeIfAbsent(value.getClass(),
+                    k -> new ConcurrentSkipListMap<>(RangeIndex::compare));
+            Set<String> ids = values.get(value);
+            if (ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+                values.put(value, ids);
+            }
+            ids.add(id);
+        }
+
+        @Override
+        synchronized void remove(String id, HValue value) {
+            if (!(value instanceof Comparable))
+                return;
+            if (isNaN(value)) {
+                nans.remove(id);
+                return;
+            }
+
+            NavigableMap<HValue, Set<String>> values = sorted.get(value.getClass());
+            if (values != null) {
+                Set<String> ids = values.get(value);
+                if (ids != null) {
+                    ids.remove(id);
+                    if (ids.isEmpty())
+                        values.remove(value);
+                }
+            }
+        }
+
+        @Override
+        synchronized void clear() {
+            sorted.clear();
+            nans.clear();
+        }
+
+        /**
+         * Returns the ids of the entities with values within the given bounds, or null if the bounds cannot be
+         * resolved by this index.
+         */
+        Set<String> range(HValue from, boolean fromInclusive, HValue to, boolean toInclusive) {
+            HValue bound = from == null ? to : from;
+            if (bound == null || isNaN(from) || isNaN(to))
+                return null;
+
+            Set<String> result = new HashSet<>();
+            NavigableMap<HValue, Set<String>> values = sorted.get(bound.getClass());
+            if (values != null) {
+                if (from == null)
+                    values = values.headMap(to, toInclusive);
+                else if (to == null)
+                    values = values.tailMap(from, fromInclusive);
+                else
+                    values = values.subMap(from, fromInclusive, to, toInclusive);
+
+                for (Set<String> ids : values.values())
+                    result.addAll(ids);
+            }
+
+            // NaN compares as equal, so it is included by inclusive bounds.
+            if (bound instanceof HNumber && (from == null || fromInclusive) && (to == null || toInclusive))
+                result.addAll(nans);
+
+            return result;
+        }
+
+        private static boolean isNaN(HValue value) {
+            return value instanceof HNumber && Double.isNaN(((HNumber) value).getValue());
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private static int compare(HValue a, HValue b) {
+            return ((Comparable) a).compareTo(b);
+        }
+    }
+}
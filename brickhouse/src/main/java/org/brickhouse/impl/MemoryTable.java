@@ -7,45 +7,180 @@
  */
 package org.brickhouse.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import org.apache.commons.lang3.mutable.MutableInt;
 import org.brickhouse.CancelReadException;
 import org.brickhouse.Database;
+import org.brickhouse.Query;
 import org.brickhouse.Table;
 import org.brickhouse.TableListener;
+import org.brickhouse.WriteBehindFullException;
 import org.brickhouse.datatype.HMap;
 import org.brickhouse.datatype.HReference;
 import org.brickhouse.datatype.HValue;
+import org.brickhouse.datatype.Shapes;
 import org.brickhouse.filter.Filter;
+import org.brickhouse.filter.Filter.Matcher;
 import org.brickhouse.filter.Filter.Pather;
+import org.brickhouse.filter.Planner;
+import org.brickhouse.impl.MemoryTableOptions.OverflowPolicy;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.transaction.CannotCreateTransactionException;
 
 public class MemoryTable implements Table {
     final SqlTable delegate;
     final Map<String, HMap> data = new ConcurrentHashMap<>();
+    final MemoryIndex index = new MemoryIndex();
+    private final Shapes shapes = new Shapes();
+    final Planner planner;
     private final boolean setDis;
     private final boolean stats;
+    private final int parallelScanThreshold;
 
-    private final WriteBehind writeBehind;
-    private final Thread writeBehindThread;
+    private final WriteAheadLog wal;
+    private final WriteBehind[] writeBehinds;
+    private final Thread[] writeBehindThreads;
+
+    private final File snapshotFile;
+    private volatile Timer snapshotTimer;
+
+    /** Completed once the rows have been loaded. Until then reads fall through to the delegate. */
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private volatile boolean loaded;
+    /** Loads the table in the background, if it is loaded asynchronously. */
+    private final Thread loader;
+    private volatile boolean closing;
+    /** Whether the database has been reported as unavailable since writes last succeeded. */
+    private final AtomicBoolean unavailable = new AtomicBoolean();
 
     public MemoryTable(Database database, String name, boolean create, boolean setDis, boolean stats) {
+        this(database, name, create, setDis, stats, new MemoryTableOptions());
+    }
+
+    public MemoryTable(Database database, String name, boolean create, boolean setDis, boolean stats,
+            MemoryTableOptions options) {
+        // The log keeps the segments that the last snapshot doesn't cover, so without periodic snapshots it would grow
+        // for as long as the table is open.
+        if (options.snapshot != null && options.writeAheadLog != null && options.snapshotInterval == 0)
+            throw new IllegalArgumentException("snapshotInterval must be positive with a write-ahead log");
+
         delegate = database.getTable(name, create, false, false);
         this.setDis = setDis;
         this.stats = stats;
+        parallelScanThreshold = options.parallelScanThreshold;
+        planner = new Planner(new Planner.Statistics() {
+            @Override
+            public int size() {
+                return data.size();
+            }
 
-        // Initialize the in-memory table.
-        delegate.readAll(Filter.ALL, map -> data.put(map.id().getId(), map), false);
+            @Override
+            public int count(String tag) {
+                return index.count(tag);
+            }
+
+            @Override
+            public int count(String tag, HValue val) {
+                return index.count(tag, val);
+            }
+        });
+
+        // Write anything left in the write-ahead log to the database before loading. If that or the load fails, the
+        // log is closed so that its files are released.
+        WriteAheadLog log = null;
+        List<Write> recovered = Collections.emptyList();
+        boolean opened = false;
+        try {
+            if (options.writeAheadLog == null)
+                wal = null;
+            else {
+                wal = log = new WriteAheadLog(new File(options.writeAheadLog, name),
+                        options.writeAheadLogSegmentSize, options.writeAheadLogSync);
+                recovered = log.recover();
+                replay(recovered);
+            }
+
+            snapshotFile = options.snapshot == null ? null : new File(options.snapshot, name + Snapshot.SUFFIX);
+            if (!options.asyncLoad)
+                initialize(options, recovered);
+            opened = true;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            if (!opened && log != null) {
+                try {
+                    log.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // Each writer owns a partition of the ids, which keeps the writes to each id in order.
+        int writers = options.writers;
+        writeBehinds = new WriteBehind[writers];
+        writeBehindThreads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            writeBehinds[i] = new WriteBehind(options, (options.queueCapacity + writers - 1) / writers);
+            writeBehindThreads[i] = new Thread(writeBehinds[i],
+                    "Brickhouse write-behind" + (writers == 1 ? "" : " " + (i + 1)));
+            writeBehindThreads[i].start();
+        }
 
-        writeBehind = new WriteBehind();
-        writeBehindThread = new Thread(writeBehind, "Brickhouse write-behind");
-        writeBehindThread.start();
+        if (!options.asyncLoad)
+            loader = null;
+        else {
+            final List<Write> r = recovered;
+            loader = new Thread(() -> {
+                try {
+                    initialize(options, r);
+                }
+                catch (RuntimeException e) {
+                    // The failure is also given to ready.
+                    if (!closing)
+                        e.printStackTrace();
+                }
+            }, "Brickhouse load " + name);
+            loader.setDaemon(true);
+            loader.start();
+        }
     }
 
     @Override
@@ -55,11 +190,15 @@ public class MemoryTable implements Table {
 
     @Override
     public HMap read(Filter filter, boolean setDis) {
+        if (!loaded)
+            return delegate.read(filter, setDis);
+
         HMap result = null;
+        Matcher plan = planner.compile(filter);
 
-        for (HMap row : data.values()) {
-            if (filter.include(row, pather)) {
-                result = new HMap(row);
+        for (HMap row : candidates(filter)) {
+            if (plan.include(row, pather)) {
+                result = row.copyOnWrite();
                 break;
             }
         }
@@ -76,10 +215,13 @@ public class MemoryTable implements Table {
 
     @Override
     public HMap readById(String id, boolean setDis) {
+        if (!loaded)
+            return delegate.readById(id, setDis);
+
         HMap result = data.get(id);
         if (result == null)
             return null;
-        result = new HMap(result);
+        result = result.copyOnWrite();
         if (setDis)
             return fillDii(result);
         return result;
@@ -102,17 +244,31 @@ public class MemoryTable implements Table {
 
     @Override
     public void readAll(Filter filter, Consumer<HMap> consumer, boolean fillDii) {
+        if (!loaded) {
+            delegate.readAll(filter, consumer, fillDii);
+            return;
+        }
+        readAll(filter, filter.resolve(index), consumer, fillDii);
+    }
+
+    /**
+     * Reads the rows that match the filter, which resolved to the given candidates.
+     */
+    private void readAll(Filter filter, MemoryIndex.Candidates c, Consumer<HMap> consumer, boolean fillDii) {
         long start = System.nanoTime();
         int count = 0;
         int included = 0;
+        Matcher plan = planner.compile(filter);
 
         try {
-            for (HMap row : data.values()) {
+            for (HMap row : candidateRows(c)) {
                 count++;
-                if (filter.include(row, pather)) {
+                if (plan.include(row, pather)) {
+                    // Rows are shared with the caller until either modifies them, so stored rows are never changed.
+                    HMap result = row.copyOnWrite();
                     if (fillDii)
-                        fillDii(row);
-                    consumer.accept(new HMap(row));
+                        fillDii(result);
+                    consumer.accept(result);
                     included++;
                 }
             }
@@ -126,6 +282,89 @@ public class MemoryTable implements Table {
                     System.currentTimeMillis());
     }
 
+    /**
+     * Reads the rows that match the given filter, evaluating the filter over the candidate rows in parallel on the
+     * common fork-join pool.
+     * 
+     * @param ordered
+     *            if true, the matching rows are collected and then given to the consumer on the calling thread, in the
+     *            order in which readAll would give them. Otherwise they are given to the consumer as they are found,
+     *            concurrently from the pool threads and the calling thread, so the consumer must be thread safe. Once
+     *            the consumer throws, e.g. a CancelReadException, it is not called again, although calls already under
+     *            way on other threads may still complete.
+     */
+    public void readAllParallel(Filter filter, Consumer<HMap> consumer, boolean fillDii, boolean ordered) {
+        if (!loaded) {
+            delegate.readAll(filter, consumer, fillDii);
+            return;
+        }
+        readAllParallel(filter, filter.resolve(index), consumer, fillDii, ordered);
+    }
+
+    private void readAllParallel(Filter filter, MemoryIndex.Candidates c, Consumer<HMap> consumer, boolean fillDii,
+            boolean ordered) {
+        long start = System.nanoTime();
+        LongAdder count = new LongAdder();
+        LongAdder included = new LongAdder();
+        AtomicBoolean stopped = new AtomicBoolean();
+        Matcher plan = planner.compile(filter);
+
+        // The map's spliterator doesn't split in iteration order, so for ordered results the candidates are first
+        // copied into a list, which does.
+        Stream<HMap> rows;
+        if (ordered) {
+            List<HMap> list = new ArrayList<>();
+            for (HMap row : candidateRows(c))
+                list.add(row);
+            rows = list.parallelStream();
+        }
+        else
+            rows = candidates(c).parallel();
+
+        Stream<HMap> matches = rows.filter(row -> {
+            if (stopped.get())
+                return false;
+            count.increment();
+            return plan.include(row, pather);
+        }).map(row -> {
+            HMap result = row.copyOnWrite();
+            if (fillDii)
+                fillDii(result);
+            return result;
+        });
+
+        try {
+            if (ordered) {
+                for (HMap row : matches.collect(Collectors.toList())) {
+                    consumer.accept(row);
+                    included.increment();
+                }
+            }
+            else {
+                // The call that throws ends the stream, but the other threads carry on until they see the flag.
+                matches.forEach(row -> {
+                    if (stopped.get())
+                        return;
+                    try {
+                        consumer.accept(row);
+                    }
+                    catch (RuntimeException e) {
+                        stopped.set(true);
+                        throw e;
+                    }
+                    included.increment();
+                });
+            }
+        }
+        catch (CancelReadException e) {
+            // no op
+        }
+
+        if (stats)
+            delegate.saveStats(filter.toString(), count.intValue(), included.intValue(), fillDii,
+                    System.nanoTime() - start, System.currentTimeMillis());
+    }
+
     @Override
     public List<HMap> readAll(Filter filter) {
         return readAll(filter, setDis);
@@ -134,15 +373,146 @@ public class MemoryTable implements Table {
     @Override
     public List<HMap> readAll(Filter filter, boolean setDis) {
         final List<HMap> list = new ArrayList<>();
-        readAll(filter, row -> list.add(row), setDis);
+        if (!loaded)
+            delegate.readAll(filter, row -> list.add(row), setDis);
+        else {
+            // The filter is resolved once, both to decide whether to scan in parallel and for the scan.
+            MemoryIndex.Candidates c = filter.resolve(index);
+            if (isParallel(c))
+                readAllParallel(filter, c, row -> list.add(row), setDis, true);
+            else
+                readAll(filter, c, row -> list.add(row), setDis);
+        }
         return list;
     }
 
+    @Override
+    public Stream<HMap> stream(Filter filter) {
+        return stream(filter, setDis);
+    }
+
+    @Override
+    public Stream<HMap> stream(Filter filter, boolean fillDii) {
+        if (!loaded)
+            return delegate.stream(filter, fillDii);
+
+        long start = System.nanoTime();
+        LongAdder count = new LongAdder();
+        LongAdder included = new LongAdder();
+        Matcher plan = planner.compile(filter);
+
+        Stream<HMap> stream = StreamSupport.stream(candidates(filter).spliterator(), false).filter(row -> {
+            count.increment();
+            return plan.include(row, pather);
+        }).map(row -> {
+            HMap result = row.copyOnWrite();
+            if (fillDii)
+                fillDii(result);
+            included.increment();
+            return result;
+        });
+
+        if (stats)
+            stream = stream.onClose(() -> delegate.saveStats(filter.toString(), count.intValue(), included.intValue(),
+                    fillDii, System.nanoTime() - start, System.currentTimeMillis()));
+        return stream;
+    }
+
+    @Override
+    public List<HMap> readAll(Query query) {
+        return readAll(query, setDis);
+    }
+
+    @Override
+    public List<HMap> readAll(Query query, boolean setDis) {
+        try (Stream<HMap> rows = stream(query, setDis)) {
+            return rows.collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public Stream<HMap> stream(Query query) {
+        return stream(query, setDis);
+    }
+
+    @Override
+    public Stream<HMap> stream(Query query, boolean fillDii) {
+        if (!loaded)
+            return delegate.stream(query, fillDii);
+        if (query.getSort().isEmpty()) {
+            Stream<HMap> rows = query.page(stream(query.getFilter(), false)).map(query::project);
+            return fillDii ? rows.map(this::fillDii) : rows;
+        }
+
+        long start = System.nanoTime();
+        int count = 0;
+        int included = 0;
+        Matcher plan = planner.compile(query.getFilter());
+
+        // Only the rows of the page are copied, and only the tags that are returned.
+        TopK top = new TopK(query);
+        for (HMap row : candidates(query.getFilter())) {
+            count++;
+            if (plan.include(row, pather)) {
+                top.offer(row);
+                included++;
+            }
+        }
+
+        if (stats)
+            delegate.saveStats(query.toString(), count, included, fillDii, System.nanoTime() - start,
+                    System.currentTimeMillis());
+
+        return top.page().stream().map(row -> {
+            HMap result = query.getTags() == null ? row.copyOnWrite() : query.project(row);
+            if (fillDii)
+                fillDii(result);
+            return result;
+        });
+    }
+
     @Override
     public int count(Filter filter) {
-        final MutableInt count = new MutableInt();
-        readAll(filter, row -> count.increment(), false);
-        return count.intValue();
+        if (!loaded)
+            return delegate.count(filter);
+
+        long start = System.nanoTime();
+        int count = 0;
+        int included = 0;
+        MemoryIndex.Candidates c = filter.resolve(index);
+
+        if (filter == Filter.ALL) {
+            // Every row matches.
+            included = data.size();
+        }
+        else if (c != null && c.exact) {
+            // The indexes answer the filter on their own, so no rows need to be evaluated.
+            included = c.complement ? Math.max(data.size() - c.ids.size(), 0) : c.ids.size();
+        }
+        else {
+            // Rows are evaluated where they are stored, without being copied.
+            Matcher plan = planner.compile(filter);
+            if (isParallel(c)) {
+                LongAdder evaluated = new LongAdder();
+                included = (int) candidates(c).parallel().filter(row -> {
+                    evaluated.increment();
+                    return plan.include(row, pather);
+                }).count();
+                count = evaluated.intValue();
+            }
+            else {
+                for (HMap row : candidateRows(c)) {
+                    count++;
+                    if (plan.include(row, pather))
+                        included++;
+                }
+            }
+        }
+
+        if (stats)
+            delegate.saveStats(filter.toString(), count, included, false, System.nanoTime() - start,
+                    System.currentTimeMillis());
+        return included;
     }
 
     @Override
@@ -150,10 +520,13 @@ public class MemoryTable implements Table {
         HReference id = record.id();
         if (id == null)
             throw new RuntimeException("id is required");
+        awaitReady();
         HMap copy = clean(new HMap(record));
         clean(copy);
-        data.put(id.getId(), copy);
-        writeBehind.tasks.add(new InsertTask(copy));
+        writeBehind(id.getId()).submit(WriteType.INSERT, id.getId(), copy, () -> {
+            put(id.getId(), copy);
+            return true;
+        });
     }
 
     @Override
@@ -167,21 +540,24 @@ public class MemoryTable implements Table {
         HReference id = map.id();
         if (id == null)
             throw new RuntimeException("id is required");
-        if (data.containsKey(id.getId())) {
-            HMap copy = clean(new HMap(map));
-            data.put(id.getId(), copy);
-            writeBehind.tasks.add(new UpdateTask(copy));
+        awaitReady();
+        HMap copy = clean(new HMap(map));
+        // The row is checked under the id's lock so that a concurrent delete isn't undone.
+        if (writeBehind(id.getId()).submit(WriteType.UPDATE, id.getId(), copy, () -> {
+            if (!data.containsKey(id.getId()))
+                return false;
+            put(id.getId(), copy);
+            return true;
+        }))
             return 1;
-        }
         return 0;
     }
 
     @Override
     public int deleteById(String id) {
-        if (data.remove(id) != null) {
-            writeBehind.tasks.add(new DeleteTask(id));
+        awaitReady();
+        if (writeBehind(id).submit(WriteType.DELETE, id, null, () -> remove(id, null)))
             return 1;
-        }
         return 0;
     }
 
@@ -192,17 +568,121 @@ public class MemoryTable implements Table {
 
     @Override
     public int deleteAll(Filter filter) {
+        awaitReady();
         int count = 0;
-        for (Entry<String, HMap> e : data.entrySet()) {
-            if (filter.include(e.getValue(), pather)) {
-                data.remove(e.getKey());
-                count++;
-                writeBehind.tasks.add(new DeleteTask(e.getKey()));
+        Matcher plan = planner.compile(filter);
+        for (HMap row : candidates(filter)) {
+            if (plan.include(row, pather)) {
+                String id = row.id().getId();
+                if (writeBehind(id).submit(WriteType.DELETE, id, null, () -> remove(id, row)))
+                    count++;
             }
         }
         return count;
     }
 
+    /**
+     * Adds an equality index on the given tag, so that filters that contain conjuncts like siteRef==@abc can be
+     * resolved in proportion to the number of matches rather than the size of the table. The index is maintained on
+     * all subsequent changes. Indexing a tag more than once has no effect.
+     * 
+     * @param tag
+     *            the name of the tag to index
+     */
+    public void addEqualityIndex(String tag) {
+        MemoryIndex.EqualityIndex ei = index.addEqualityIndex(tag);
+        if (ei != null)
+            populate(ei);
+    }
+
+    /**
+     * Adds a range index on the given tag, so that comparison filters like number > 50 or
+     * mod >= 2015-01-01T00:00:00Z UTC can be resolved with range lookups rather than by scanning. Only values that are
+     * comparable are indexed, e.g. numbers, dates, times and date times. Indexing a tag more than once has no effect.
+     * 
+     * @param tag
+     *            the name of the tag to index
+     */
+    public void addRangeIndex(String tag) {
+        MemoryIndex.RangeIndex ri = index.addRangeIndex(tag);
+        if (ri != null)
+            populate(ri);
+    }
+
+    /**
+     * Describes how the given filter would be executed: the order in which its parts would be evaluated along with
+     * their estimated selectivity and cost, and how the indexes would be used to narrow the rows to evaluate.
+     * 
+     * @param filter
+     *            the filter to explain
+     * @return the description
+     */
+    public String explain(Filter filter) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Query: ").append(filter).append('\n');
+        sb.append(planner.explain(filter));
+
+        MemoryIndex.Candidates c = filter.resolve(index);
+        sb.append("Index: ");
+        if (c == null)
+            sb.append("none, scanning ").append(data.size()).append(" rows");
+        else {
+            sb.append(filter.resolve(index.explainer())).append(", ");
+            if (c.complement)
+                sb.append("scanning ").append(data.size()).append(" rows excluding ").append(c.ids.size());
+            else
+                sb.append(c.ids.size()).append(" candidates");
+            sb.append(c.exact ? " (exact)" : " (superset)");
+        }
+        sb.append('\n');
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns the shapes shared by the rows in memory. If there are too many, rows with new sets of tags are kept
+     * uncompacted, which costs more memory.
+     */
+    public Shapes getShapes() {
+        return shapes;
+    }
+
+    /**
+     * Returns the current state of the write-behind, including how many writes have not yet been written to the
+     * database and how long the oldest of them has been waiting.
+     */
+    public WriteBehindStats getWriteBehindStats() {
+        WriteBehindStats[] stats = new WriteBehindStats[writeBehinds.length];
+        for (int i = 0; i < writeBehinds.length; i++)
+            stats[i] = writeBehinds[i].stats();
+        return WriteBehindStats.sum(stats);
+    }
+
+    /**
+     * Returns a future that completes when the rows have been loaded into memory, or completes exceptionally if the
+     * load failed. Until then reads are answered by the database and writes wait for the load.
+     */
+    public CompletableFuture<Void> ready() {
+        return ready.thenApply(v -> v);
+    }
+
+    public boolean isReady() {
+        return loaded;
+    }
+
+    /**
+     * Writes a snapshot of the table, which is used to load the table more quickly the next time it is opened, and
+     * allows the write-ahead log segments that the snapshot covers to be deleted. Snapshots must have been enabled in
+     * the options. Without a write-ahead log this does nothing, since only the snapshot written on close can be used.
+     */
+    public void snapshot() {
+        if (snapshotFile == null)
+            throw new IllegalStateException("Snapshots are not enabled");
+        awaitReady();
+        if (wal != null)
+            writeSnapshot(false);
+    }
+
     @Override
     public boolean include(HMap map, Filter filter) {
         return filter.include(map, pather);
@@ -210,15 +690,54 @@ public class MemoryTable implements Table {
 
     @Override
     public void close() {
-        writeBehind.running = false;
-        synchronized (writeBehind) {
-            writeBehind.notify();
+        // Stop any load first, so that it doesn't discard the log or start the snapshot timer after the close, and fail
+        // the writes that are waiting for it.
+        closing = true;
+        if (loader != null) {
+            loader.interrupt();
+            try {
+                loader.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        try {
-            writeBehindThread.join();
+        ready.completeExceptionally(new IllegalStateException("Table is closed"));
+
+        if (snapshotTimer != null)
+            snapshotTimer.cancel();
+        for (WriteBehind writeBehind : writeBehinds) {
+            writeBehind.running = false;
+            synchronized (writeBehind) {
+                writeBehind.notify();
+            }
         }
-        catch (InterruptedException e) {
-            // no op
+        for (Thread writeBehindThread : writeBehindThreads) {
+            try {
+                writeBehindThread.join();
+            }
+            catch (InterruptedException e) {
+                // no op
+            }
+        }
+        if (snapshotFile != null && loaded) {
+            try {
+                // The write-behind is done, so the snapshot matches the database unless writes failed or are still
+                // being retried.
+                WriteBehindStats writeBehindStats = getWriteBehindStats();
+                writeSnapshot(writeBehindStats.getFailures() == 0 && writeBehindStats.getPending() == 0);
+            }
+            catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        if (wal != null) {
+            try {
+                wal.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -242,6 +761,506 @@ public class MemoryTable implements Table {
         }
     };
 
+    /**
+     * Loads the rows, from the snapshot if possible, and then marks the table as ready.
+     */
+    void initialize(MemoryTableOptions options, List<Write> recovered) {
+        try {
+            if (snapshotFile == null || !load(recovered))
+                delegate.loadAll(options.loadConnections, map -> put(map.id().getId(), map), options.loadProgress);
+
+            // The recovered log is kept if the table was closed during the load, since it may not have been replayed
+            // into a snapshot.
+            if (closing)
+                throw new IllegalStateException("Table is closed");
+
+            if (wal != null)
+                wal.discardRecovered();
+
+            if (snapshotFile != null && wal != null && options.snapshotInterval > 0) {
+                snapshotTimer = new Timer("Brickhouse snapshot", true);
+                snapshotTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            snapshot();
+                        }
+                        catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }, options.snapshotInterval, options.snapshotInterval);
+            }
+        }
+        catch (IOException e) {
+            ready.completeExceptionally(e);
+            throw new RuntimeException(e);
+        }
+        catch (RuntimeException e) {
+            if (closing && !(e instanceof IllegalStateException))
+                e = new IllegalStateException("Table is closed", e);
+            ready.completeExceptionally(e);
+            throw e;
+        }
+
+        planner.invalidate();
+        loaded = true;
+        ready.complete(null);
+    }
+
+    /**
+     * Waits until the rows have been loaded, so that writes aren't overwritten by the load.
+     */
+    private void awaitReady() {
+        if (!loaded) {
+            try {
+                ready.join();
+            }
+            catch (CompletionException e) {
+                if (!closing)
+                    throw e;
+            }
+        }
+        if (closing)
+            throw new IllegalStateException("Table is closed");
+    }
+
+    /**
+     * Loads the table from the snapshot, bringing it up to date with the writes recovered from the write-ahead log
+     * that it doesn't contain. The snapshot is not used if it is corrupt, if it might be missing writes, or if the
+     * database has changed since it was written.
+     * 
+     * @return whether the table was loaded
+     */
+    boolean load(List<Write> recovered) {
+        if (!snapshotFile.exists()) {
+            if (wal != null)
+                wal.snapshotted(0);
+            return false;
+        }
+
+        String reason;
+        try {
+            Snapshot snapshot = Snapshot.read(snapshotFile, map -> put(map.id().getId(), map));
+
+            if (wal == null) {
+                // The database may be changed as soon as the table is opened, so the snapshot is no longer clean.
+                if (!snapshotFile.delete())
+                    System.out.println("WARN: could not delete snapshot " + snapshotFile);
+                if (!snapshot.clean)
+                    reason = "it was not written on close";
+                else
+                    reason = checkRows(snapshot.checksum);
+            }
+            else {
+                // The log must contain every write after the snapshot's mark.
+                if (!recovered.isEmpty() && recovered.get(0).seq > snapshot.mark + 1)
+                    reason = "the write-ahead log does not go back to it";
+                else {
+                    long last = snapshot.mark;
+                    for (Write w : recovered) {
+                        if (w.seq > snapshot.mark) {
+                            if (w.type == WriteType.DELETE)
+                                remove(w.id, null);
+                            else
+                                put(w.id, w.row);
+                            last = w.seq;
+                        }
+                    }
+                    // Without the rows of the database when it was written, a log that has every write since the
+                    // snapshot is taken to show that no one else has written to the table.
+                    reason = snapshot.clean && last == snapshot.mark ? checkRows(snapshot.checksum) : checkIds();
+
+                    if (reason == null) {
+                        wal.startAfter(snapshot.mark);
+                        // Cover the recovered writes before their segments are discarded.
+                        if (last > snapshot.mark)
+                            writeSnapshot(false);
+                        else
+                            wal.snapshotted(snapshot.mark);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            reason = e.getMessage();
+        }
+
+        if (reason == null)
+            return true;
+
+        System.out.println("WARN: not using snapshot " + snapshotFile + " because " + reason);
+        data.clear();
+        index.clear();
+        if (snapshotFile.exists() && !snapshotFile.delete())
+            System.out.println("WARN: could not delete snapshot " + snapshotFile);
+        if (wal != null)
+            wal.snapshotted(0);
+        return false;
+    }
+
+    /**
+     * Checks that the database has the same rows as when the snapshot was written, which catches rows that were
+     * inserted, updated or deleted by others while the table was closed.
+     */
+    private String checkRows(long checksum) {
+        int count = delegate.rowCount();
+        if (count != data.size())
+            return "it has " + data.size() + " rows but the database has " + count;
+        if (delegate.checksum() != checksum)
+            return "the database has changed since it was written";
+        return null;
+    }
+
+    /**
+     * Checks that the rows have the same ids as those in the database, which catches rows that were inserted or
+     * deleted by others after the snapshot was written. Rows that were updated in place are not caught.
+     */
+    private String checkIds() {
+        int count = delegate.rowCount();
+        if (count != data.size())
+            return "it has " + data.size() + " rows but the database has " + count;
+        long sum = 0;
+        for (String id : data.keySet())
+            sum += SqlTable.hash(id);
+        if (sum != delegate.idChecksum())
+            return "its ids are not the same as those in the database";
+        return null;
+    }
+
+    /**
+     * Writes a snapshot of the current rows. The write-ahead log's sequence number is read before the rows, so every
+     * write up to it is in the snapshot. Later writes may also be, and are applied again if the log is replayed onto
+     * the snapshot. A clean snapshot records the checksum of the database, which must be unchanged for it to be used.
+     */
+    void writeSnapshot(boolean clean) {
+        synchronized (snapshotFile) {
+            long mark = wal == null ? 0 : wal.seq();
+            long checksum = clean ? delegate.checksum() : 0;
+            try {
+                Snapshot.write(snapshotFile, mark, clean, checksum, data.values());
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (wal != null)
+                wal.snapshotted(mark);
+        }
+    }
+
+    /**
+     * Writes the writes recovered from the write-ahead log to the database, inserts and updates as upserts.
+     */
+    void replay(List<Write> writes) {
+        Map<String, Write> pending = new LinkedHashMap<>();
+        for (Write w : writes) {
+            if (w.type != WriteType.DELETE)
+                w = new Write(WriteType.DELETE_INSERT, w.id, w.row);
+            pending.merge(w.id, w, Write::then);
+        }
+
+        // Fail if the database is unavailable so that the log is kept.
+        if (!pending.isEmpty()) {
+            int failed = persist(pending.values(), new AtomicLong()).size();
+            if (failed > 0)
+                throw new RuntimeException("Could not replay the write-ahead log into the database: " + failed
+                        + " of " + pending.size() + " writes failed");
+        }
+    }
+
+    /**
+     * Writes the given writes to the database as batches in a single transaction, or individually if that fails.
+     * 
+     * @param dropped
+     *            incremented for each write that is given up
+     * @return the writes that failed transiently, and so may be retried
+     */
+    List<Write> persist(Collection<Write> writes, AtomicLong dropped) {
+        final List<String> deletes = new ArrayList<>();
+        final List<HMap> inserts = new ArrayList<>();
+        final List<HMap> updates = new ArrayList<>();
+        for (Write w : writes) {
+            if (w.type == WriteType.DELETE || w.type == WriteType.DELETE_INSERT)
+                deletes.add(w.id);
+            if (w.type == WriteType.INSERT || w.type == WriteType.DELETE_INSERT)
+                inserts.add(w.row);
+            if (w.type == WriteType.UPDATE)
+                updates.add(w.row);
+        }
+
+        try {
+            // Listeners are only told once the transaction has committed.
+            final int[][] counts = new int[2][];
+            delegate.transaction(() -> {
+                if (!deletes.isEmpty())
+                    counts[0] = delegate.batchDeleteImpl(deletes);
+                if (!inserts.isEmpty())
+                    delegate.batchInsertImpl(inserts);
+                if (!updates.isEmpty())
+                    counts[1] = delegate.batchUpdateImpl(updates);
+            });
+            if (counts[0] != null)
+                delegate.fireBatchDelete(deletes, counts[0]);
+            if (!inserts.isEmpty())
+                delegate.fireBatchInsert(inserts);
+            if (counts[1] != null)
+                delegate.fireBatchUpdate(updates, counts[1]);
+            available();
+            return Collections.emptyList();
+        }
+        catch (RuntimeException e) {
+            if (isTransient(e)) {
+                unavailable(e);
+                return new ArrayList<>(writes);
+            }
+
+            List<Write> failed = new ArrayList<>();
+            for (Write w : writes) {
+                if (!failed.isEmpty()) {
+                    failed.add(w);
+                    continue;
+                }
+                try {
+                    // One transaction per write, so a delete-insert is all or nothing.
+                    final int[] count = new int[1];
+                    delegate.transaction(() -> {
+                        if (w.type == WriteType.DELETE || w.type == WriteType.DELETE_INSERT)
+                            count[0] = delegate.deleteImpl(w.id);
+                        if (w.type == WriteType.INSERT || w.type == WriteType.DELETE_INSERT)
+                            delegate.insertImpl(w.row);
+                        if (w.type == WriteType.UPDATE)
+                            count[0] = delegate.updateImpl(w.row);
+                    });
+
+                    if (w.type == WriteType.DELETE || w.type == WriteType.DELETE_INSERT)
+                        delegate.fireDelete(w.id, count[0]);
+                    if (w.type == WriteType.INSERT || w.type == WriteType.DELETE_INSERT)
+                        delegate.fireInsert(w.row);
+                    if (w.type == WriteType.UPDATE)
+                        delegate.fireUpdate(w.row, count[0]);
+                    available();
+                }
+                catch (RuntimeException e2) {
+                    if (isTransient(e2)) {
+                        unavailable(e2);
+                        failed.add(w);
+                    }
+                    else {
+                        deadLetter(w, e2);
+                        dropped.incrementAndGet();
+                    }
+                }
+            }
+            return failed;
+        }
+    }
+
+    /**
+     * Reports that the database could not be written to, once until writes succeed again.
+     */
+    private void unavailable(RuntimeException e) {
+        if (unavailable.compareAndSet(false, true))
+            System.out.println("WARN: could not write to the database, will retry until it is available: " + e);
+    }
+
+    private void available() {
+        if (unavailable.compareAndSet(true, false))
+            System.out.println("INFO: writes to the database have resumed");
+    }
+
+    /**
+     * Returns whether the error looks like the database being unavailable rather than a bad write.
+     */
+    static boolean isTransient(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof TransientDataAccessException || t instanceof RecoverableDataAccessException
+                    || t instanceof DataAccessResourceFailureException || t instanceof CannotCreateTransactionException
+                    || t instanceof SQLTransientException || t instanceof SQLRecoverableException)
+                return true;
+            // Connection exceptions
+            if (t instanceof SQLException && ((SQLException) t).getSQLState() != null
+                    && ((SQLException) t).getSQLState().startsWith("08"))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gives up the write, recording it in the dead-letter file if there is one.
+     */
+    void deadLetter(Write write, RuntimeException e) {
+        e.printStackTrace();
+        if (wal != null) {
+            try {
+                wal.deadLetter(write, e.toString());
+                return;
+            }
+            catch (IOException e2) {
+                e2.printStackTrace();
+            }
+        }
+        System.out.println("WARN: gave up on " + write.type + " of " + write.id + ": "
+                + (write.row == null ? "" : SqlTable.toString(write.row)));
+    }
+
+    /**
+     * Returns the write-behind that owns the partition of the given id.
+     */
+    WriteBehind writeBehind(String id) {
+        if (writeBehinds.length == 1)
+            return writeBehinds[0];
+        return writeBehinds[(id.hashCode() & Integer.MAX_VALUE) % writeBehinds.length];
+    }
+
+    /**
+     * Puts the row into the data map in compact form, keeping the indexes current. Index maintenance is done within the
+     * map's compute so that updates to the same id are serialized.
+     */
+    void put(String id, HMap row) {
+        HMap compact = row.compact(shapes);
+        data.compute(id, (k, old) -> {
+            index.update(k, old, compact);
+            return compact;
+        });
+        planner.changed();
+    }
+
+    /**
+     * Populates a newly created value index with the existing rows and then marks it as ready. Each row is added within
+     * the map's compute so that it does not race with concurrent changes to the same id.
+     */
+    void populate(MemoryIndex.ValueIndex vi) {
+        for (String id : data.keySet()) {
+            data.computeIfPresent(id, (k, row) -> {
+                vi.add(k, row.get(vi.tag));
+                return row;
+            });
+        }
+        vi.ready = true;
+        // Plans made without the index may now be much worse.
+        planner.invalidate();
+    }
+
+    /**
+     * Removes the row with the given id from the data map, keeping the indexes current. If expected is not null the
+     * row is only removed if it is still the current row for the id.
+     * 
+     * @return whether a row was removed
+     */
+    boolean remove(String id, HMap expected) {
+        final HMap[] removed = new HMap[1];
+        data.computeIfPresent(id, (k, old) -> {
+            if (expected != null && old != expected)
+                return old;
+            index.remove(k, old);
+            removed[0] = old;
+            return null;
+        });
+        if (removed[0] == null)
+            return false;
+        planner.changed();
+        return true;
+    }
+
+    /**
+     * Returns the rows that may match the given filter, using the indexes to narrow them down where possible. The
+     * filter still needs to be applied to the rows that are returned.
+     */
+    Iterable<HMap> candidates(Filter filter) {
+        return candidateRows(filter.resolve(index));
+    }
+
+    /**
+     * Returns the rows that may match the filter that resolved to the given candidates.
+     */
+    Iterable<HMap> candidateRows(MemoryIndex.Candidates c) {
+        if (c == null)
+            return data.values();
+        if (c.complement) {
+            if (c.ids.isEmpty())
+                return data.values();
+            return () -> new CandidateIterator(data.entrySet().iterator(), c.ids);
+        }
+        if (c.ids.isEmpty())
+            return Collections.emptyList();
+        return () -> new CandidateIterator(c.ids.iterator());
+    }
+
+    /**
+     * Returns a stream of the rows that may match the filter that resolved to the given candidates.
+     */
+    Stream<HMap> candidates(MemoryIndex.Candidates c) {
+        if (c == null || c.complement && c.ids.isEmpty())
+            return data.values().stream();
+        if (c.complement)
+            return data.entrySet().stream().filter(e -> !c.ids.contains(e.getKey())).map(Entry::getValue);
+        // The rows may have been removed since the candidates were resolved.
+        return c.ids.stream().map(data::get).filter(Objects::nonNull);
+    }
+
+    /**
+     * Returns whether scans for the filter that resolved to the given candidates should be run in parallel, i.e.
+     * whether parallel scans are enabled and there are enough candidate rows to be worth splitting.
+     */
+    private boolean isParallel(MemoryIndex.Candidates c) {
+        if (parallelScanThreshold == 0 || data.size() < parallelScanThreshold)
+            return false;
+        if (c == null || c.complement)
+            return true;
+        return c.ids.size() >= parallelScanThreshold;
+    }
+
+    /**
+     * Iterates over either the rows of the given ids, or over the rows of all entries that are not excluded.
+     */
+    class CandidateIterator implements Iterator<HMap> {
+        private final Iterator<String> ids;
+        private final Iterator<Entry<String, HMap>> entries;
+        private final Set<String> excluded;
+        private HMap next;
+
+        CandidateIterator(Iterator<String> ids) {
+            this.ids = ids;
+            this.entries = null;
+            this.excluded = null;
+        }
+
+        CandidateIterator(Iterator<Entry<String, HMap>> entries, Set<String> excluded) {
+            this.ids = null;
+            this.entries = entries;
+            this.excluded = excluded;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (ids != null) {
+                    if (!ids.hasNext())
+                        return false;
+                    // The row may have been removed since the candidates were resolved.
+                    next = data.get(ids.next());
+                }
+                else {
+                    if (!entries.hasNext())
+                        return false;
+                    Entry<String, HMap> e = entries.next();
+                    if (!excluded.contains(e.getKey()))
+                        next = e.getValue();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public HMap next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            HMap result = next;
+            next = null;
+            return result;
+        }
+    }
+
     HMap fillDii(HMap map) {
         if (map != null) {
             HMap refs = null;
@@ -251,8 +1270,9 @@ public class MemoryTable implements Table {
                     HReference r = (HReference) e.getValue();
                     HMap referent = data.get(r.getId());
                     if (referent != null) {
+                        // Only rows whose dis values change are copied.
                         String dis = referent.disOrNull();
-                        if (dis != null) {
+                        if (dis != null && !dis.equals(r.getDis())) {
                             if (refs == null)
                                 refs = new HMap();
                             refs.put(e.getKey(), new HReference(r.getId(), dis));
@@ -269,22 +1289,243 @@ public class MemoryTable implements Table {
 
     //
     // Write-behind thread
-    static class WriteBehind implements Runnable {
-        ConcurrentLinkedQueue<WriteBehindTask> tasks = new ConcurrentLinkedQueue<>();
+    //
+    enum WriteType {
+        INSERT, UPDATE, DELETE, DELETE_INSERT
+    }
+
+    /**
+     * A pending write to the delegate. Writes to the same id are coalesced.
+     */
+    static class Write {
+        final WriteType type;
+        final String id;
+        final HMap row;
+        long seq;
+        WriteAheadLog.Segment segment;
+        /** When the earliest coalesced write was made, in nanos. */
+        final long time;
+        /** Queue permits held by the coalesced writes. */
+        int permits;
+
+        Write(WriteType type, String id, HMap row) {
+            this(type, id, row, System.nanoTime());
+        }
+
+        Write(WriteType type, String id, HMap row, long time) {
+            this.type = type;
+            this.id = id;
+            this.row = row;
+            this.time = time;
+        }
+
+        /**
+         * Returns the write that has the same effect as this write followed by the given one.
+         */
+        Write then(Write next) {
+            Write result;
+            switch (next.type) {
+            case INSERT:
+            case DELETE_INSERT:
+                // The row may already be in the database.
+                result = new Write(WriteType.DELETE_INSERT, id, next.row, time);
+                break;
+            case UPDATE:
+                result = type == WriteType.DELETE ? this : new Write(type, id, next.row, time);
+                break;
+            default:
+                // The row may already be in the database.
+                result = new Write(next.type, id, null, time);
+            }
+            result.permits = permits + next.permits;
+            return result;
+        }
+    }
+
+    class WriteBehind implements Runnable {
+        static final int MAX_FLUSH = 10000;
+        /** Write rate averaging period, in nanos. */
+        static final double RATE_PERIOD = 60e9;
+        /** Retry backoff limit, in millis. */
+        static final long MAX_BACKOFF = 30000;
+        static final int STRIPES = 64;
+
+        final ConcurrentLinkedQueue<Write> writes = new ConcurrentLinkedQueue<>();
         volatile boolean running = true;
+        /** Locks by id hash, which keep writes to an id in order across the table, the log and the queue. */
+        final Object[] stripes = new Object[STRIPES];
+
+        // Bounding
+        final int capacity;
+        final OverflowPolicy policy;
+        final long flushInterval;
+        /** In nanos. */
+        final long retryTimeout;
+        final Semaphore permits;
+        /** Coalesce policy only. */
+        final Map<String, Write> overflow = new LinkedHashMap<>();
+        /** Overflowed writes per log segment. Guarded by overflow. */
+        final Map<WriteAheadLog.Segment, Integer> overflowLogged = new HashMap<>();
+        /** Failed writes. Only used by flush. */
+        final Map<String, Write> retry = new LinkedHashMap<>();
+        /** Log segment counts held until the retries succeed. */
+        final Map<WriteAheadLog.Segment, Integer> retryLogged = new HashMap<>();
+        /** Retried writes that hold no permits. */
+        volatile int retryingOverflowed;
+        volatile long retryingSince;
+        /** In millis. */
+        long backoff;
+
+        // Metrics
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        volatile long batches;
+        volatile long batchNanos;
+        volatile long lastBatchNanos;
+        volatile long maxBatchNanos;
+        volatile long flushingSince;
+        volatile double rate;
+        long lastFlush = System.nanoTime();
+
+        WriteBehind(MemoryTableOptions options, int capacity) {
+            this.capacity = capacity;
+            policy = options.overflowPolicy;
+            flushInterval = options.flushInterval;
+            retryTimeout = TimeUnit.MILLISECONDS.toNanos(options.retryTimeout);
+            permits = new Semaphore(capacity);
+            for (int i = 0; i < stripes.length; i++)
+                stripes[i] = new Object();
+        }
+
+        /**
+         * Makes a change to the table and queues the corresponding write. Room is reserved first so that a write that
+         * can't be queued doesn't change the table.
+         * 
+         * @param change
+         *            makes the change, returning whether anything changed
+         * @return whether anything changed
+         */
+        boolean submit(WriteType type, String id, HMap row, BooleanSupplier change) {
+            boolean permit = reserve();
+            boolean changed = false;
+            Write write = null;
+            RuntimeException logError = null;
+            try {
+                synchronized (stripes[(id.hashCode() & Integer.MAX_VALUE) % stripes.length]) {
+                    changed = change.getAsBoolean();
+                    if (changed) {
+                        submitted.incrementAndGet();
+                        write = new Write(type, id, row);
+
+                        // Queued even if it can't be logged, but the caller is told.
+                        if (wal != null) {
+                            try {
+                                wal.append(write);
+                            }
+                            catch (RuntimeException e) {
+                                logError = e;
+                            }
+                        }
+                        queue(write, permit);
+                    }
+                }
+            }
+            finally {
+                if (!changed && permit)
+                    permits.release();
+            }
+
+            if (changed) {
+                if (logError != null)
+                    throw logError;
+                // Outside the lock so that writers share forces.
+                if (wal != null)
+                    wal.sync(write.seq);
+            }
+            return changed;
+        }
+
+        private void queue(Write write, boolean permit) {
+            if (policy != OverflowPolicy.COALESCE) {
+                write.permits = 1;
+                writes.add(write);
+            }
+            else {
+                synchronized (overflow) {
+                    // Once anything has overflowed, everything does until it is flushed, to keep writes in order.
+                    if (overflow.isEmpty() && (permit || permits.tryAcquire())) {
+                        write.permits = 1;
+                        writes.add(write);
+                    }
+                    else {
+                        if (permit)
+                            permits.release();
+                        overflow.merge(write.id, write, Write::then);
+                        if (write.segment != null)
+                            overflowLogged.merge(write.segment, 1, Integer::sum);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reserves room in the queue according to the overflow policy.
+         * 
+         * @return whether a permit was acquired
+         */
+        private boolean reserve() {
+            if (policy == OverflowPolicy.BLOCK) {
+                permits.acquireUninterruptibly();
+                return true;
+            }
+            if (policy == OverflowPolicy.FAIL) {
+                if (!permits.tryAcquire())
+                    throw new WriteBehindFullException("Write-behind queue is full: " + capacity + " writes pending");
+                return true;
+            }
+            // Coalesce: checked when queued.
+            return false;
+        }
+
+        WriteBehindStats stats() {
+            int overflowed;
+            long oldest = min(flushingSince, retryingSince);
+            synchronized (overflow) {
+                overflowed = overflow.size();
+                if (overflowed > 0)
+                    oldest = min(oldest, overflow.values().iterator().next().time);
+            }
+            Write head = writes.peek();
+            if (head != null)
+                oldest = min(oldest, head.time);
+
+            long b = batches;
+            return new WriteBehindStats(capacity - permits.availablePermits() + overflowed + retryingOverflowed,
+                    capacity,
+                    oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest), submitted.get(),
+                    written.get(), failures.get(), rate, b, lastBatchNanos / 1e6,
+                    b == 0 ? 0 : batchNanos / 1e6 / b, maxBatchNanos / 1e6);
+        }
+
+        /**
+         * Returns the earlier of two nano times, where 0 means no time.
+         */
+        private long min(long a, long b) {
+            if (a == 0)
+                return b;
+            if (b == 0)
+                return a;
+            return a - b < 0 ? a : b;
+        }
 
         @Override
         public void run() {
-            WriteBehindTask task;
-
             while (running) {
-                while ((task = tasks.poll()) != null)
-                    task.execute();
-
-                if (running) {
+                if (!flush() && running) {
                     synchronized (this) {
                         try {
-                            wait(200);
+                            wait(backoff > 0 ? backoff : flushInterval);
                         }
                         catch (InterruptedException e) {
                             // no op
@@ -294,53 +1535,127 @@ public class MemoryTable implements Table {
             }
 
             // One last check
-            while ((task = tasks.poll()) != null)
-                task.execute();
+            while (flush()) {
+                // Keep flushing until the queue is empty.
+            }
 
             System.out.println("Write-behind done");
         }
-    }
 
-    abstract class WriteBehindTask {
-        abstract void execute();
-    }
+        /**
+         * Coalesces the queued writes by id and persists them.
+         * 
+         * @return whether there may be more writes in the queue
+         */
+        boolean flush() {
+            // Oldest first: retries, then the queue, then the overflow.
+            Map<String, Write> pending = new LinkedHashMap<>(retry);
+            Map<WriteAheadLog.Segment, Integer> logged = new HashMap<>(retryLogged);
+            retry.clear();
+            retryLogged.clear();
+            Write write;
+            int polled = 0;
+            while (polled < MAX_FLUSH && (write = writes.poll()) != null) {
+                pending.merge(write.id, write, Write::then);
+                if (write.segment != null)
+                    logged.merge(write.segment, 1, Integer::sum);
+                polled++;
+            }
+
+            int overflowed = 0;
+            if (polled < MAX_FLUSH) {
+                synchronized (overflow) {
+                    for (Write w : overflow.values()) {
+                        pending.merge(w.id, w, Write::then);
+                        overflowed++;
+                    }
+                    overflow.clear();
+                    for (Entry<WriteAheadLog.Segment, Integer> e : overflowLogged.entrySet())
+                        logged.merge(e.getKey(), e.getValue(), Integer::sum);
+                    overflowLogged.clear();
+                }
+            }
 
-    class InsertTask extends WriteBehindTask {
-        private final HMap row;
+            updateRate(polled + overflowed);
+            if (pending.isEmpty())
+                return false;
 
-        public InsertTask(HMap row) {
-            this.row = row;
-        }
+            long oldest = 0;
+            for (Write w : pending.values())
+                oldest = min(oldest, w.time);
+            flushingSince = oldest;
+            long start = System.nanoTime();
 
-        @Override
-        void execute() {
-            delegate.insert(row);
-        }
-    }
+            AtomicLong dropped = new AtomicLong();
+            List<Write> failed = persist(pending.values(), dropped);
 
-    class UpdateTask extends WriteBehindTask {
-        private final HMap row;
+            long elapsed = System.nanoTime() - start;
+            lastBatchNanos = elapsed;
+            if (elapsed > maxBatchNanos)
+                maxBatchNanos = elapsed;
+            batchNanos += elapsed;
+            batches++;
+            flushingSince = 0;
 
-        public UpdateTask(HMap row) {
-            this.row = row;
-        }
+            long now = System.nanoTime();
+            for (Iterator<Write> it = failed.iterator(); it.hasNext();) {
+                Write w = it.next();
+                if (now - w.time > retryTimeout) {
+                    deadLetter(w, new RuntimeException("Still failing after the retry timeout"));
+                    dropped.incrementAndGet();
+                    it.remove();
+                }
+            }
+            failures.addAndGet(dropped.get());
+            written.addAndGet(pending.size() - failed.size() - dropped.get());
 
-        @Override
-        void execute() {
-            delegate.updateById(row);
-        }
-    }
+            // Failed writes keep their permits.
+            int released = 0;
+            for (Write w : pending.values())
+                released += w.permits;
+            int overflowedRetries = 0;
+            for (Write w : failed) {
+                released -= w.permits;
+                if (w.permits == 0)
+                    overflowedRetries++;
+            }
+            permits.release(released);
 
-    class DeleteTask extends WriteBehindTask {
-        private final String id;
+            if (failed.isEmpty()) {
+                for (Entry<WriteAheadLog.Segment, Integer> e : logged.entrySet())
+                    wal.release(e.getKey(), e.getValue());
+            }
+            else {
+                // Coalescing loses track of segments, so all of the batch's are held.
+                for (Write w : failed)
+                    retry.put(w.id, w);
+                retryLogged.putAll(logged);
+            }
+            retryingOverflowed = overflowedRetries;
+            long since = 0;
+            for (Write w : retry.values())
+                since = min(since, w.time);
+            retryingSince = since;
 
-        public DeleteTask(String id) {
-            this.id = id;
+            if (failed.isEmpty()) {
+                backoff = 0;
+                return polled == MAX_FLUSH;
+            }
+            backoff = Math.min(Math.max(backoff * 2, flushInterval), MAX_BACKOFF);
+            return false;
         }
 
-        @Override
-        void execute() {
-            delegate.deleteById(id);
+        /**
+         * Updates the moving average of the write rate.
+         */
+        private void updateRate(int count) {
+            long now = System.nanoTime();
+            long elapsed = now - lastFlush;
+            lastFlush = now;
+            if (elapsed <= 0)
+                return;
+            double alpha = 1 - Math.exp(-elapsed / RATE_PERIOD);
+            rate += alpha * (count * 1e9 / elapsed - rate);
         }
     }
 }
@@ -0,0 +1,212 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.io.File;
+
+/**
+ * Options for a memory table's write-behind to the database, and for the local files that speed up its recovery and
+ * loading.
+ */
+public class MemoryTableOptions {
+    /**
+     * What to do with a write when the write-behind queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Block the writer until there is room in the queue. */
+        BLOCK,
+        /**
+         * Hold the write outside of the queue, coalesced with any other overflowing writes to the same id, until the
+         * queue is flushed. Memory use is then bounded by the number of distinct ids written.
+         */
+        COALESCE,
+        /** Throw a WriteBehindFullException without changing the table. */
+        FAIL
+    }
+
+    /**
+     * Receives the progress of loading a table from the database.
+     */
+    public interface LoadProgress {
+        /**
+         * Called as rows are loaded, possibly concurrently and out of order.
+         * 
+         * @param loaded
+         *            the number of rows loaded so far
+         * @param total
+         *            the number of rows in the table when the load started
+         */
+        void progress(int loaded, int total);
+    }
+
+    int queueCapacity = 100000;
+    OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    long flushInterval = 200;
+    long retryTimeout = 10 * 60 * 1000;
+    int writers = 1;
+    File writeAheadLog;
+    int writeAheadLogSegmentSize = 16 * 1024 * 1024;
+    boolean writeAheadLogSync = true;
+    File snapshot;
+    long snapshotInterval = 5 * 60 * 1000;
+    int loadConnections = 1;
+    LoadProgress loadProgress;
+    boolean asyncLoad;
+    int parallelScanThreshold;
+
+    /**
+     * The maximum number of writes waiting to be written to the database. Defaults to 100,000.
+     */
+    public MemoryTableOptions queueCapacity(int queueCapacity) {
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * What to do when the queue is full. Defaults to BLOCK.
+     */
+    public MemoryTableOptions overflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * The number of threads writing to the database, each of which owns a partition of the ids so that the writes to
+     * each entity stay in order. Each thread uses its own connection while writing, so this should be less than the
+     * size of the connection pool. The queue capacity is divided among the threads. Defaults to 1.
+     */
+    public MemoryTableOptions writers(int writers) {
+        if (writers < 1)
+            throw new IllegalArgumentException("writers must be positive");
+        this.writers = writers;
+        return this;
+    }
+
+    /**
+     * Enables a write-ahead log in a subdirectory (named after the table) of the given directory. Each write is
+     * recorded in the log before it is acknowledged, so that writes that have not yet been written to the database
+     * survive a crash. Anything left in the log is written to the database when the table is next opened. Disabled by
+     * default.
+     */
+    public MemoryTableOptions writeAheadLog(File writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+        return this;
+    }
+
+    /**
+     * The size in bytes of the write-ahead log's segment files. Defaults to 16MB.
+     */
+    public MemoryTableOptions writeAheadLogSegmentSize(int writeAheadLogSegmentSize) {
+        this.writeAheadLogSegmentSize = writeAheadLogSegmentSize;
+        return this;
+    }
+
+    /**
+     * Whether writes wait until they have been forced to disk. Concurrent writes share forces. Without this, writes
+     * survive the death of the JVM but not of the operating system. Defaults to true.
+     */
+    public MemoryTableOptions writeAheadLogSync(boolean writeAheadLogSync) {
+        this.writeAheadLogSync = writeAheadLogSync;
+        return this;
+    }
+
+    /**
+     * Enables binary snapshots of the table, written to a file named after the table in the given directory. When the
+     * table is opened it is loaded from the snapshot rather than the database if the snapshot is usable. With a
+     * write-ahead log, snapshots are written periodically and on close, and are brought up to date on load from the
+     * log, which then also keeps the writes made since the last snapshot. Without one, snapshots are only written by a
+     * clean close. Disabled by default.
+     * 
+     * A snapshot written by a clean close records a checksum of the rows in the database, and is only used if the
+     * database still has the same rows, which costs reading the json of every row but not parsing it. A periodic
+     * snapshot is used if the log has every write made since it, and is then only checked against the ids of the rows
+     * in the database, so the table must be the only writer to the database when it has a write-ahead log.
+     */
+    public MemoryTableOptions snapshot(File snapshot) {
+        this.snapshot = snapshot;
+        return this;
+    }
+
+    /**
+     * How often in milliseconds to write a snapshot with a write-ahead log, which keeps the writes made since the last
+     * snapshot. Must not be 0 with a write-ahead log. Not used without one. Defaults to 5 minutes.
+     */
+    public MemoryTableOptions snapshotInterval(long snapshotInterval) {
+        if (snapshotInterval < 0)
+            throw new IllegalArgumentException("snapshotInterval must not be negative");
+        this.snapshotInterval = snapshotInterval;
+        return this;
+    }
+
+    /**
+     * The number of connections with which to read the table from the database when it is loaded. The ids are split
+     * into this many ranges, which are read concurrently. Decoding is always done on the common fork-join pool.
+     * Defaults to 1.
+     */
+    public MemoryTableOptions loadConnections(int loadConnections) {
+        if (loadConnections < 1)
+            throw new IllegalArgumentException("loadConnections must be positive");
+        this.loadConnections = loadConnections;
+        return this;
+    }
+
+    /**
+     * Receives the progress of loading the table from the database. Not called when the table is loaded from a
+     * snapshot.
+     */
+    public MemoryTableOptions loadProgress(LoadProgress loadProgress) {
+        this.loadProgress = loadProgress;
+        return this;
+    }
+
+    /**
+     * Whether to load the table in the background, so that the constructor returns as soon as the write-ahead log has
+     * been replayed. Until the load is done reads are answered by the database, and writes wait for it. See
+     * MemoryTable.ready. Defaults to false.
+     */
+    public MemoryTableOptions asyncLoad(boolean asyncLoad) {
+        this.asyncLoad = asyncLoad;
+        return this;
+    }
+
+    /**
+     * The number of candidate rows at which readAll queries that return lists and counts are evaluated in parallel on
+     * the common fork-join pool, or 0 to never do so. Queries that give rows to a consumer are only run in parallel by
+     * MemoryTable.readAllParallel. Defaults to 0.
+     */
+    public MemoryTableOptions parallelScanThreshold(int parallelScanThreshold) {
+        if (parallelScanThreshold < 0)
+            throw new IllegalArgumentException("parallelScanThreshold must not be negative");
+        this.parallelScanThreshold = parallelScanThreshold;
+        return this;
+    }
+
+    /**
+     * How long in milliseconds the write-behind waits for more writes when the queue is empty. Defaults to 200.
+     */
+    public MemoryTableOptions flushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+        return this;
+    }
+
+    /**
+     * How long in milliseconds after a write is made it is retried if it fails with what looks like a transient error,
+     * such as a lost connection or a timeout. Writes that fail with any other error, or for longer than this, are given
+     * up and recorded in the write-ahead log's dead-letter file, or printed if there is no log. Failed writes keep
+     * their room in the queue while they are retried, with a backoff of up to 30 seconds between retries, so the
+     * overflow policy applies while the database is unavailable. Defaults to 10 minutes.
+     */
+    public MemoryTableOptions retryTimeout(long retryTimeout) {
+        if (retryTimeout < 0)
+            throw new IllegalArgumentException("retryTimeout must not be negative");
+        this.retryTimeout = retryTimeout;
+        return this;
+    }
+}
@@ -0,0 +1,49 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+/**
+ * Translates filters using the MySQL JSON functions, which are available as of MySQL 5.7.8. MariaDB has no JSON type,
+ * and so cannot use this dialect.
+ */
+public class MysqlDialect extends SqlDialect {
+    @Override
+    protected Where hasTag(String tag) {
+        return new Where("JSON_CONTAINS_PATH(json, 'one', ?)", true, path(tag));
+    }
+
+    @Override
+    protected Where eqJson(String tag, String json) {
+        return new Where("(JSON_EXTRACT(json, ?) <=> CAST(? AS JSON))", true, path(tag), json);
+    }
+
+    /**
+     * Connector/J reads the whole result into memory unless the fetch size is Integer.MIN_VALUE, in which case it
+     * streams the rows one at a time. No other statement can be run on the connection until the stream is done, so
+     * streams within a transaction don't use this.
+     */
+    @Override
+    protected int fetchSize() {
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * Binary strings are ordered by their bytes, which is the order of the code points.
+     */
+    @Override
+    protected String idOrder() {
+        return "CAST(id AS BINARY)";
+    }
+
+    /**
+     * Returns the JSON path of the given tag. The tag name is quoted so that it may contain any characters.
+     */
+    static String path(String tag) {
+        return "$.\"" + tag.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -7,14 +7,50 @@
  */
 package org.brickhouse.impl;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+
 public class MysqlImpl extends DatabaseImpl {
+    private static final MysqlDialect JSON_DIALECT = new MysqlDialect();
+    private static final Pattern VERSION = Pattern.compile("(\\d+)\\.(\\d+)\\.(\\d+)");
+
+    private final Boolean pushdown;
+    private volatile Boolean json;
+
     public MysqlImpl(String host, String schema, String username, String password) {
+        this(host, schema, username, password, null);
+    }
+
+    /**
+     * @param pushdown
+     *            whether filters are translated into SQL using the JSON functions. If null, they are if the server
+     *            supports the functions, i.e. it is MySQL 5.7.8 or later. Otherwise, filters are applied to the rows
+     *            after they are read.
+     */
+    public MysqlImpl(String host, String schema, String username, String password, Boolean pushdown) {
         super(new DataSourceBuilder() //
                 .driverClassName("com.mysql.jdbc.Driver") //
                 .url("jdbc:mysql://" + host + "/" + schema) //
                 .username(username) //
                 .password(password) //
                 .build());
+        this.pushdown = pushdown;
+    }
+
+    @Override
+    protected SqlDialect getDialect(String name) {
+        Boolean b = pushdown;
+        if (b == null) {
+            b = json;
+            if (b == null)
+                json = b = supportsJson(getServerVersion());
+        }
+        return b ? JSON_DIALECT : dialect;
     }
 
     @Override
@@ -27,4 +63,33 @@ public class MysqlImpl extends DatabaseImpl {
         jt.execute("CREATE TABLE " + name + STATS_SUFFIX
                 + " (query TEXT, rows INT, included INT, dis CHAR(1), nanos BIGINT, ts BIGINT)");
     }
+
+    private String getServerVersion() {
+        return jt.execute(new ConnectionCallback<String>() {
+            @Override
+            public String doInConnection(Connection con) throws SQLException, DataAccessException {
+                return con.getMetaData().getDatabaseProductVersion();
+            }
+        });
+    }
+
+    /**
+     * Returns whether the server with the given version string has the JSON functions used by the dialect. MariaDB
+     * reports versions like "5.5.5-10.3.7-MariaDB", and has no JSON type to cast to.
+     */
+    static boolean supportsJson(String version) {
+        if (version == null || version.contains("MariaDB"))
+            return false;
+        Matcher m = VERSION.matcher(version);
+        if (!m.find())
+            return false;
+        int major = Integer.parseInt(m.group(1));
+        int minor = Integer.parseInt(m.group(2));
+        int patch = Integer.parseInt(m.group(3));
+        if (major != 5)
+            return major > 5;
+        if (minor != 7)
+            return minor > 7;
+        return patch >= 8;
+    }
 }
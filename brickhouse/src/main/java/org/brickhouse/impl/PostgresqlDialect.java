@@ -0,0 +1,125 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.Collection;
+
+/**
+ * Translates filters using the PostgreSQL jsonb operators. If the json column is stored as text it is cast to jsonb,
+ * which means that every row must be parsed by the database. If the column is stored as jsonb, tag existence and
+ * equality are expressed with the existence and containment operators, which can be answered using a GIN index on the
+ * column.
+ * 
+ * The jsonb existence operator is a question mark, which the JDBC driver would take as a parameter placeholder, so
+ * fragments from this dialect use inline literals rather than parameters. Statements without parameters are executed
+ * as plain statements, which the driver does not scan for placeholders.
+ */
+public class PostgresqlDialect extends SqlDialect {
+    private final boolean jsonb;
+    private final String column;
+
+    public PostgresqlDialect() {
+        this(false);
+    }
+
+    /**
+     * @param jsonb
+     *            whether the json column is stored as jsonb rather than text.
+     */
+    public PostgresqlDialect(boolean jsonb) {
+        this.jsonb = jsonb;
+        column = jsonb ? "json" : "json::jsonb";
+    }
+
+    public boolean isJsonb() {
+        return jsonb;
+    }
+
+    @Override
+    protected Where hasTag(String tag) {
+        return new Where("(" + column + " ? " + literal(tag) + ")", true);
+    }
+
+    @Override
+    protected Where eqJson(String tag, String json) {
+        // Containment is equivalent to equality for the scalar values that are pushed down, and unlike extraction it
+        // can use the index.
+        if (jsonb)
+            return new Where("(" + column + " @> " + literal("{" + quote(tag) + ":" + json + "}") + "::jsonb)", true);
+        return new Where("((" + column + " -> " + literal(tag) + ") IS NOT DISTINCT FROM " + literal(json)
+                + "::jsonb)", true);
+    }
+
+    @Override
+    protected Where inTagIndex(String table, String tag, String val) {
+        String sql = "id IN (SELECT id FROM " + table + " WHERE name=" + literal(tag);
+        if (val != null)
+            sql += " AND val=" + literal(val);
+        return new Where(sql + ")", true);
+    }
+
+    @Override
+    protected String jsonParameter() {
+        // The driver sends strings as varchar, which is not implicitly converted to jsonb.
+        return jsonb ? "?::jsonb" : "?";
+    }
+
+    /**
+     * The C collation orders by the UTF-8 bytes, which is the order of the code points.
+     */
+    @Override
+    protected String idOrder() {
+        return "id COLLATE \"C\"";
+    }
+
+    /**
+     * Only done for jsonb columns, since text would be parsed for each tag. Null members, i.e. missing tags, are
+     * stripped from the object.
+     */
+    @Override
+    protected String project(Collection<String> tags) {
+        if (!jsonb)
+            return null;
+
+        StringBuilder sb = new StringBuilder("jsonb_strip_nulls(jsonb_build_object(");
+        boolean first = true;
+        for (String tag : tags) {
+            if (!first)
+                sb.append(", ");
+            first = false;
+            sb.append(literal(tag)).append(", ").append(column).append(" -> ").append(literal(tag));
+        }
+        return sb.append("))").toString();
+    }
+
+    /**
+     * Quotes the given string as an escape string constant, which is interpreted the same way regardless of the
+     * standard_conforming_strings setting.
+     */
+    static String literal(String s) {
+        return "E'" + s.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    /**
+     * Quotes the given string as a JSON string.
+     */
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
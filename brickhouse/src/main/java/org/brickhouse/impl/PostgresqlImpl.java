@@ -7,19 +7,60 @@
  */
 package org.brickhouse.impl;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+
 public class PostgresqlImpl extends DatabaseImpl {
+    private static final PostgresqlDialect JSONB_DIALECT = new PostgresqlDialect(true);
+
+    private final boolean jsonb;
+
     public PostgresqlImpl(String host, String schema, String username, String password) {
+        this(host, schema, username, password, false);
+    }
+
+    /**
+     * @param jsonb
+     *            whether new tables store their rows as jsonb with a GIN index rather than as text. Existing tables
+     *            are used as they are stored, and can be converted with migrateToJsonb.
+     */
+    public PostgresqlImpl(String host, String schema, String username, String password, boolean jsonb) {
         super(new DataSourceBuilder() //
                 .driverClassName("org.postgresql.Driver") //
                 .url("jdbc:postgresql://" + host + "/" + schema) //
                 .username(username) //
                 .password(password) //
-                .build());
+                .build(), new PostgresqlDialect());
+        this.jsonb = jsonb;
+    }
+
+    /**
+     * Converts the json column of the given table from text to jsonb, and creates the GIN index on it. This rewrites
+     * the table, and so can take a while for large tables. Does nothing if the column is already jsonb. Tables should
+     * be reopened after they are migrated.
+     */
+    public void migrateToJsonb(String name) {
+        if (isJsonb(name))
+            return;
+        jt.execute("ALTER TABLE " + name + " ALTER COLUMN json TYPE JSONB USING json::jsonb");
+        createIndex(name);
+    }
+
+    @Override
+    protected SqlDialect getDialect(String name) {
+        return isJsonb(name) ? JSONB_DIALECT : dialect;
     }
 
     @Override
     protected void createTable(String name) {
-        jt.execute("CREATE TABLE " + name + " (id VARCHAR(50) NOT NULL, dis TEXT, json TEXT, PRIMARY KEY (id))");
+        jt.execute("CREATE TABLE " + name + " (id VARCHAR(50) NOT NULL, dis TEXT, json " + (jsonb ? "JSONB" : "TEXT")
+                + ", PRIMARY KEY (id))");
+        if (jsonb)
+            createIndex(name);
     }
 
     @Override
@@ -27,4 +68,20 @@ public class PostgresqlImpl extends DatabaseImpl {
         jt.execute("CREATE TABLE " + name + STATS_SUFFIX
                 + " (query TEXT, rows INTEGER, included INTEGER, dis CHAR(1), nanos BIGINT, ts BIGINT)");
     }
+
+    private void createIndex(String name) {
+        // The default operator class supports both the existence and containment operators.
+        jt.execute("CREATE INDEX " + name + "_json_idx ON " + name + " USING GIN (json)");
+    }
+
+    private boolean isJsonb(final String name) {
+        return jt.execute(new ConnectionCallback<Boolean>() {
+            @Override
+            public Boolean doInConnection(Connection con) throws SQLException, DataAccessException {
+                try (ResultSet rs = con.getMetaData().getColumns(null, null, name.toLowerCase(), "json")) {
+                    return rs.next() && "jsonb".equalsIgnoreCase(rs.getString("TYPE_NAME"));
+                }
+            }
+        });
+    }
 }
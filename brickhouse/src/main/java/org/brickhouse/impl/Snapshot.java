@@ -0,0 +1,347 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.brickhouse.datatype.HBinary;
+import org.brickhouse.datatype.HBoolean;
+import org.brickhouse.datatype.HCoordinates;
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HMarker;
+import org.brickhouse.datatype.HNA;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HRemove;
+import org.brickhouse.datatype.HString;
+import org.brickhouse.datatype.HTime;
+import org.brickhouse.datatype.HTimeZone;
+import org.brickhouse.datatype.HUri;
+import org.brickhouse.datatype.HValue;
+import org.brickhouse.datatype.Interner;
+
+/**
+ * A compact binary image of the rows of a memory table, which is much faster to load than reading and parsing the
+ * json of every row from the database. The file is:
+ * 
+ * <pre>
+ * int      magic
+ * int      version
+ * long     mark: the sequence number of the last write-ahead log record reflected in the rows
+ * boolean  clean: whether the rows were written after all writes had been written to the database
+ * long     checksum: the checksum of the rows in the database when the snapshot was written, if it is clean
+ * int      number of rows
+ * rows:
+ *   int    number of tags, followed by the name and value of each
+ * long     CRC32 of everything above
+ * </pre>
+ * 
+ * Values are written as a type code followed by their fields. Snapshots are written to a temporary file that is
+ * renamed into place, so a crash while writing leaves the previous snapshot intact.
+ */
+class Snapshot {
+    static final String SUFFIX = ".snapshot";
+    static final int MAGIC = 0x42485350;
+    static final int VERSION = 2;
+
+    // Type codes
+    private static final byte NULL = 0;
+    private static final byte MARKER = 1;
+    private static final byte NA = 2;
+    private static final byte REMOVE = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte NUMBER = 6;
+    private static final byte STRING = 7;
+    private static final byte REFERENCE = 8;
+    private static final byte URI = 9;
+    private static final byte DATE = 10;
+    private static final byte TIME = 11;
+    private static final byte DATE_TIME = 12;
+    private static final byte COORDINATES = 13;
+    private static final byte BINARY = 14;
+    private static final byte LIST = 15;
+    private static final byte MAP = 16;
+
+    final long mark;
+    final boolean clean;
+    final long checksum;
+    final int size;
+
+    private Snapshot(long mark, boolean clean, long checksum, int size) {
+        this.mark = mark;
+        this.clean = clean;
+        this.checksum = checksum;
+        this.size = size;
+    }
+
+    /**
+     * Writes the given rows to the file.
+     */
+    static void write(File file, long mark, boolean clean, long checksum, Collection<HMap> rows) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos, 65536),
+                    crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mark);
+            out.writeBoolean(clean);
+            out.writeLong(checksum);
+
+            // The rows may be changing, so the count is taken from what is actually written.
+            HMap[] snapshot = rows.toArray(new HMap[0]);
+            out.writeInt(snapshot.length);
+            for (HMap row : snapshot)
+                writeMap(out, row);
+
+            out.writeLong(crc.getValue());
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the rows from the file, giving each to the consumer.
+     * 
+     * @return the header of the snapshot
+     * @throws IOException
+     *             if the file could not be read, or is corrupt. Rows may have already been given to the consumer.
+     */
+    static Snapshot read(File file, Consumer<HMap> consumer) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(fis, 65536), crc));
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a snapshot: " + file);
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            long mark = in.readLong();
+            boolean clean = in.readBoolean();
+            long checksum = in.readLong();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++)
+                consumer.accept(readMap(in));
+
+            long expected = crc.getValue();
+            if (in.readLong() != expected || in.read() != -1)
+                throw new IOException("Snapshot failed its CRC: " + file);
+            return new Snapshot(mark, clean, checksum, size);
+        }
+        catch (EOFException e) {
+            throw new IOException("Snapshot is truncated: " + file, e);
+        }
+        catch (RuntimeException e) {
+            throw new IOException("Snapshot is corrupt: " + file, e);
+        }
+    }
+
+    //
+    // Values
+    //
+    private static void writeMap(DataOutputStream out, HMap map) throws IOException {
+        out.writeInt(map.size());
+        for (Entry<String, HValue> e : map.entrySet()) {
+            writeString(out, e.getKey());
+            writeValue(out, e.getValue());
+        }
+    }
+
+    private static HMap readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        HMap map = new HMap();
+        for (int i = 0; i < size; i++) {
+            String tag = Interner.string(readString(in));
+            map.put(tag, Interner.value(tag, readValue(in)));
+        }
+        return map;
+    }
+
+    private static void writeValue(DataOutputStream out, HValue value) throws IOException {
+        if (value == null)
+            out.writeByte(NULL);
+        else if (value instanceof HMarker)
+            out.writeByte(MARKER);
+        else if (value instanceof HNA)
+            out.writeByte(NA);
+        else if (value instanceof HRemove)
+            out.writeByte(REMOVE);
+        else if (value instanceof HBoolean)
+            out.writeByte(((HBoolean) value).isValue() ? TRUE : FALSE);
+        else if (value instanceof HNumber) {
+            HNumber n = (HNumber) value;
+            out.writeByte(NUMBER);
+            out.writeDouble(n.getValue());
+            writeNullableString(out, n.getUnit());
+        }
+        else if (value instanceof HString) {
+            out.writeByte(STRING);
+            writeString(out, ((HString) value).getValue());
+        }
+        else if (value instanceof HReference) {
+            HReference r = (HReference) value;
+            out.writeByte(REFERENCE);
+            writeString(out, r.getId());
+            writeNullableString(out, r.getDis());
+        }
+        else if (value instanceof HUri) {
+            out.writeByte(URI);
+            writeString(out, ((HUri) value).getValue());
+        }
+        else if (value instanceof HDate) {
+            out.writeByte(DATE);
+            writeDate(out, (HDate) value);
+        }
+        else if (value instanceof HTime) {
+            out.writeByte(TIME);
+            writeTime(out, (HTime) value);
+        }
+        else if (value instanceof HDateTime) {
+            HDateTime dt = (HDateTime) value;
+            out.writeByte(DATE_TIME);
+            writeDate(out, dt.getDate());
+            writeTime(out, dt.getTime());
+            writeString(out, dt.getTz().toString());
+            out.writeInt(dt.getTzOffset());
+        }
+        else if (value instanceof HCoordinates) {
+            HCoordinates c = (HCoordinates) value;
+            out.writeByte(COORDINATES);
+            out.writeDouble(c.getLat());
+            out.writeDouble(c.getLng());
+        }
+        else if (value instanceof HBinary) {
+            out.writeByte(BINARY);
+            writeString(out, ((HBinary) value).getMime());
+        }
+        else if (value instanceof HList) {
+            HList list = (HList) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (HValue v : list.getList())
+                writeValue(out, v);
+        }
+        else if (value instanceof HMap) {
+            out.writeByte(MAP);
+            writeMap(out, (HMap) value);
+        }
+        else
+            throw new IOException("Unhandled value type: " + value.getClass());
+    }
+
+    private static HValue readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case NULL:
+            return null;
+        case MARKER:
+            return HMarker.VALUE;
+        case NA:
+            return HNA.VALUE;
+        case REMOVE:
+            return HRemove.VALUE;
+        case TRUE:
+            return HBoolean.TRUE;
+        case FALSE:
+            return HBoolean.FALSE;
+        case NUMBER:
+            return new HNumber(in.readDouble(), readString(in));
+        case STRING:
+            return new HString(readString(in));
+        case REFERENCE:
+            return new HReference(readString(in), readString(in));
+        case URI:
+            return new HUri(readString(in));
+        case DATE:
+            return readDate(in);
+        case TIME:
+            return readTime(in);
+        case DATE_TIME:
+            return new HDateTime(readDate(in), readTime(in), HTimeZone.forName(readString(in)), in.readInt());
+        case COORDINATES:
+            return new HCoordinates(in.readDouble(), in.readDouble());
+        case BINARY:
+            return new HBinary(readString(in));
+        case LIST:
+            int size = in.readInt();
+            HList list = new HList();
+            for (int i = 0; i < size; i++)
+                list.add(readValue(in));
+            return list;
+        case MAP:
+            return readMap(in);
+        }
+        throw new IOException("Unknown value type: " + type);
+    }
+
+    private static void writeDate(DataOutputStream out, HDate date) throws IOException {
+        out.writeShort(date.getYear());
+        out.writeByte(date.getMonth());
+        out.writeByte(date.getDay());
+    }
+
+    private static HDate readDate(DataInputStream in) throws IOException {
+        return new HDate(in.readShort(), in.readByte(), in.readByte());
+    }
+
+    private static void writeTime(DataOutputStream out, HTime time) throws IOException {
+        out.writeByte(time.getHour());
+        out.writeByte(time.getMinute());
+        out.writeByte(time.getSecond());
+        out.writeShort(time.getMs());
+    }
+
+    private static HTime readTime(DataInputStream in) throws IOException {
+        return new HTime(in.readByte(), in.readByte(), in.readByte(), in.readShort());
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeNullableString(DataOutputStream out, String s) throws IOException {
+        if (s == null)
+            out.writeInt(-1);
+        else
+            writeString(out, s);
+    }
+}
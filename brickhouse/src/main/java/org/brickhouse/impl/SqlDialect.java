@@ -0,0 +1,193 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.brickhouse.datatype.HBoolean;
+import org.brickhouse.datatype.HMarker;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HString;
+import org.brickhouse.datatype.HUri;
+import org.brickhouse.datatype.HValue;
+import org.brickhouse.filter.Filter.Resolver;
+
+/**
+ * Translates filters into SQL where clauses that can be evaluated by the database. Parts of a filter that the database
+ * cannot evaluate are approximated, in which case the where clause selects a superset of the matching rows and the
+ * filter must still be applied to the rows that are returned.
+ * 
+ * All fragments produced by a dialect must evaluate to true or false, and never to null, so that they can be safely
+ * negated.
+ */
+public abstract class SqlDialect implements Resolver<SqlDialect.Where> {
+    /**
+     * Creates a fragment that is true for rows where the given tag is present.
+     */
+    protected abstract Where hasTag(String tag);
+
+    /**
+     * Creates a fragment that is true for rows where the given tag has a value with the given JSON encoding.
+     */
+    protected abstract Where eqJson(String tag, String json);
+
+    /**
+     * Creates a fragment that is true for rows that have an entry in the given tag index table with the given tag name
+     * and, if not null, the given encoded value.
+     */
+    protected Where inTagIndex(String table, String tag, String val) {
+        if (val == null)
+            return new Where("id IN (SELECT id FROM " + table + " WHERE name=?)", true, tag);
+        return new Where("id IN (SELECT id FROM " + table + " WHERE name=? AND val=?)", true, tag, val);
+    }
+
+    /**
+     * Returns the placeholder to use for the json column value in inserts and updates.
+     */
+    protected String jsonParameter() {
+        return "?";
+    }
+
+    /**
+     * Returns the fetch size to use for cursors that stream rows, so that the driver doesn't hold the whole result in
+     * memory.
+     */
+    protected int fetchSize() {
+        return SqlTable.STREAM_FETCH_SIZE;
+    }
+
+    /**
+     * Returns the expression to order rows by so that they are in the order of their ids as Java strings, or null if
+     * sorting by id can't be pushed down.
+     */
+    protected String idOrder() {
+        return null;
+    }
+
+    /**
+     * Returns the expression to select instead of the json column so that the database returns a json object with only
+     * the given tags, or null if the database can't.
+     */
+    protected String project(Collection<String> tags) {
+        return null;
+    }
+
+    /**
+     * Returns the clause that restricts a query to the given page of its rows.
+     * 
+     * @param limit
+     *            the maximum number of rows, or -1 for no limit
+     */
+    protected String page(int offset, int limit) {
+        return " LIMIT " + (limit < 0 ? Long.MAX_VALUE : limit) + " OFFSET " + offset;
+    }
+
+    //
+    // Resolver
+    //
+    @Override
+    public Where has(String tag) {
+        return hasTag(tag);
+    }
+
+    @Override
+    public Where missing(String tag) {
+        return not(hasTag(tag));
+    }
+
+    @Override
+    public Where eq(String tag, HValue val) {
+        if (isCanonical(val))
+            return eqJson(tag, SqlTable.toJson(val));
+        return approx(hasTag(tag));
+    }
+
+    @Override
+    public Where range(String tag, HValue from, boolean fromInclusive, HValue to, boolean toInclusive) {
+        return approx(hasTag(tag));
+    }
+
+    @Override
+    public Where approx(Where w) {
+        if (w == null || !w.exact)
+            return w;
+        return new Where(w.sql, w.params, false);
+    }
+
+    @Override
+    public Where and(Where a, Where b) {
+        if (a == null)
+            return approx(b);
+        if (b == null)
+            return approx(a);
+        return new Where("(" + a.sql + " AND " + b.sql + ")", concat(a.params, b.params), a.exact && b.exact);
+    }
+
+    @Override
+    public Where or(Where a, Where b) {
+        if (a == null || b == null)
+            return null;
+        return new Where("(" + a.sql + " OR " + b.sql + ")", concat(a.params, b.params), a.exact && b.exact);
+    }
+
+    @Override
+    public Where not(Where w) {
+        // The negation of a superset is not a superset of the negation.
+        if (w == null || !w.exact)
+            return null;
+        return new Where("NOT (" + w.sql + ")", w.params, true);
+    }
+
+    /**
+     * Returns whether the given value is of a type that has a single JSON encoding, so that equality of the encodings
+     * agrees with equality of the values. Only equality on these types is pushed down.
+     */
+    static boolean isCanonical(HValue val) {
+        return val instanceof HString || val instanceof HReference || val instanceof HMarker
+                || val instanceof HBoolean || val instanceof HUri;
+    }
+
+    private static List<Object> concat(List<Object> a, List<Object> b) {
+        if (a.isEmpty())
+            return b;
+        if (b.isEmpty())
+            return a;
+        List<Object> result = new ArrayList<>(a);
+        result.addAll(b);
+        return result;
+    }
+
+    /**
+     * A where clause fragment and its parameters. If exact is false, the fragment selects a superset of the rows that
+     * match the filter from which it was created.
+     */
+    public static class Where {
+        final String sql;
+        final List<Object> params;
+        final boolean exact;
+
+        public Where(String sql, List<Object> params, boolean exact) {
+            this.sql = sql;
+            this.params = params;
+            this.exact = exact;
+        }
+
+        public Where(String sql, boolean exact, Object... params) {
+            this(sql, params.length == 0 ? Collections.emptyList() : Arrays.asList(params), exact);
+        }
+
+        @Override
+        public String toString() {
+            return sql + " " + params + (exact ? "" : " (superset)");
+        }
+    }
+}
@@ -9,98 +9,229 @@ package org.brickhouse.impl;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.sql.DataSource;
 
 import org.apache.commons.lang3.mutable.MutableInt;
-import org.apache.commons.lang3.mutable.MutableObject;
 import org.brickhouse.CancelReadException;
+import org.brickhouse.Query;
 import org.brickhouse.Table;
 import org.brickhouse.TableListener;
 import org.brickhouse.datatype.HMap;
 import org.brickhouse.datatype.HReference;
 import org.brickhouse.datatype.HValue;
+import org.brickhouse.datatype.Interner;
 import org.brickhouse.filter.Filter;
 import org.brickhouse.filter.Filter.Pather;
+import org.brickhouse.impl.SqlDialect.Where;
 import org.brickhouse.json.JsonUtils;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.serotonin.json.JsonException;
 import com.serotonin.json.JsonReader;
 import com.serotonin.json.JsonWriter;
+import com.serotonin.json.type.JsonObject;
+import com.serotonin.json.type.JsonTypeReader;
+import com.serotonin.json.type.JsonValue;
 
 public class SqlTable implements Table {
+    static final String TAGS_SUFFIX = "_tags";
+    /** The longest encoded value that is stored in the tag index. */
+    static final int MAX_INDEXED_VALUE = 255;
+    static final int TAG_INDEX_BATCH_SIZE = 1000;
+    static final int DEFAULT_DELETE_CHUNK_SIZE = 500;
+    /** The number of rows given to each decoding task by loadAll. */
+    static final int LOAD_BATCH_SIZE = 1000;
+    /** The default fetch size of cursors that stream rows. */
+    static final int STREAM_FETCH_SIZE = 500;
+
     private final List<TableListener> listeners = new CopyOnWriteArrayList<>();
 
     final JdbcTemplate jt;
     final String name;
     final boolean setDis;
     final boolean stats;
+    final SqlDialect dialect;
+    final TransactionTemplate tt;
+
+    // The tag index, if it exists.
+    final String tagTable;
+    volatile boolean tagIndex;
+    volatile SqlDialect resolver;
+
+    volatile int deleteChunkSize = DEFAULT_DELETE_CHUNK_SIZE;
 
     // SQL
     final String select;
     final String selectId;
+    final String selectIds;
     final String insert;
     final String update;
     final String delete;
     final String disRead;
     final String statInsert;
+    final String tagInsert;
+    final String tagDelete;
 
     public SqlTable(JdbcTemplate jt, String name, boolean setDis, boolean stats) {
+        this(jt, name, setDis, stats, null);
+    }
+
+    /**
+     * @param dialect
+     *            used to push filters down to the database as where clauses. If null, all rows are read and filtered
+     *            in memory.
+     */
+    public SqlTable(JdbcTemplate jt, String name, boolean setDis, boolean stats, SqlDialect dialect) {
         this.jt = jt;
         this.name = name;
         this.setDis = setDis;
         this.stats = stats;
+        this.dialect = dialect;
+        tt = new TransactionTemplate(new DataSourceTransactionManager(jt.getDataSource()));
+        tagTable = name + TAGS_SUFFIX;
 
         select = "SELECT json FROM " + name;
+        selectIds = "SELECT id FROM " + name;
         selectId = "SELECT json FROM " + name + " WHERE id=?";
-        insert = "INSERT INTO " + name + " (id, dis, json) VALUES (?,?,?)";
-        update = "UPDATE " + name + " SET dis=?, json=? WHERE id=?";
+        String json = dialect == null ? "?" : dialect.jsonParameter();
+        insert = "INSERT INTO " + name + " (id, dis, json) VALUES (?,?," + json + ")";
+        update = "UPDATE " + name + " SET dis=?, json=" + json + " WHERE id=?";
         delete = "DELETE FROM " + name + " WHERE id=?";
         disRead = "SELECT dis FROM " + name + " WHERE id=?";
         statInsert = "INSERT INTO " + name + DatabaseImpl.STATS_SUFFIX
                 + " (query, rows, included, dis, nanos, ts) VALUES (?,?,?,?,?,?)";
-    }
+        tagInsert = "INSERT INTO " + tagTable + " (name, id, val) VALUES (?,?,?)";
+        tagDelete = "DELETE FROM " + tagTable + " WHERE id=?";
 
-    @Override
-    public HMap read(Filter filter) {
-        return read(filter, setDis);
+        setTagIndex(tableExists(tagTable));
+        if (tagIndex && idIndexed(tagTable) == Boolean.FALSE)
+            System.out.println("WARN: " + tagTable + " has no index on id, so writes scan it. Call createTagIndex to "
+                    + "add one.");
     }
 
-    @Override
-    public HMap read(final Filter filter, boolean setDis) {
-        final MutableObject<HMap> o = new MutableObject<>();
+    /**
+     * Creates the tag index for this table if it doesn't exist, and populates it from the current rows. The index has
+     * a row for each tag of each entity, and is maintained transactionally by writes made through this instance. Tag
+     * existence and equality filters are then answered using the index, which is useful for databases that can't index
+     * the json column.
+     * 
+     * This should not be called while the table is being written. Other instances of this table that were opened
+     * before the index was created won't maintain it, and so should be reopened.
+     * 
+     * The rows of each entity are deleted by id on every update and delete, so the primary key leads with id. Indexes
+     * created before that was the case are given an index on id.
+     */
+    public void createTagIndex() {
+        if (!tableExists(tagTable)) {
+            jt.execute("CREATE TABLE " + tagTable + " (name VARCHAR(255) NOT NULL, id VARCHAR(50) NOT NULL, "
+                    + "val VARCHAR(255), PRIMARY KEY (id, name))");
+            jt.execute("CREATE INDEX " + tagTable + "_val_idx ON " + tagTable + " (name, val)");
+        }
+        else if (idIndexed(tagTable) != Boolean.TRUE) {
+            try {
+                jt.execute("CREATE INDEX " + tagTable + "_id_idx ON " + tagTable + " (id)");
+            }
+            catch (DataAccessException e) {
+                // The index already exists, but the driver couldn't say so.
+            }
+        }
 
-        try {
+        tt.execute(status -> {
+            jt.update("DELETE FROM " + tagTable);
+            final List<Object[]> batch = new ArrayList<>();
             jt.query(select, new RowCallbackHandler() {
                 @Override
                 public void processRow(ResultSet rs) throws SQLException {
-                    HMap map = toMap(rs.getString(1));
-                    if (filter.include(map, pather)) {
-                        o.setValue(map);
-                        throw new CancelReadException();
+                    tags(toMap(rs.getString(1)), batch);
+                    if (batch.size() >= TAG_INDEX_BATCH_SIZE) {
+                        jt.batchUpdate(tagInsert, batch);
+                        batch.clear();
                     }
                 }
             });
-        }
-        catch (CancelReadException e) {
-            // no op
+            if (!batch.isEmpty())
+                jt.batchUpdate(tagInsert, batch);
+            return null;
+        });
+
+        setTagIndex(true);
+    }
+
+    public boolean hasTagIndex() {
+        return tagIndex;
+    }
+
+    public int getDeleteChunkSize() {
+        return deleteChunkSize;
+    }
+
+    /**
+     * Sets the maximum number of ids in each delete statement issued by deleteAll.
+     */
+    public void setDeleteChunkSize(int deleteChunkSize) {
+        if (deleteChunkSize < 1)
+            throw new IllegalArgumentException("deleteChunkSize must be positive");
+        this.deleteChunkSize = deleteChunkSize;
+    }
+
+    @Override
+    public HMap read(Filter filter) {
+        return read(filter, setDis);
+    }
+
+    @Override
+    public HMap read(final Filter filter, boolean setDis) {
+        final Where where = where(filter);
+
+        HMap result;
+        try (Stream<HMap> rows = rows(where)) {
+            result = rows.filter(map -> residual(where, filter, map)).findFirst().orElse(null);
         }
 
         if (setDis)
-            return fillDii(o.getValue());
-        return o.getValue();
+            return fillDii(result);
+        return result;
     }
 
     @Override
@@ -148,11 +279,95 @@ public class SqlTable implements Table {
         return list;
     }
 
+    @Override
+    public Stream<HMap> stream(Filter filter) {
+        return stream(filter, setDis);
+    }
+
+    @Override
+    public Stream<HMap> stream(Filter filter, boolean fillDii) {
+        return fillDii(select(filter.toString(), filter, where(filter), "", null, fillDii), fillDii);
+    }
+
+    @Override
+    public List<HMap> readAll(Query query) {
+        return readAll(query, setDis);
+    }
+
+    @Override
+    public List<HMap> readAll(Query query, boolean setDis) {
+        try (Stream<HMap> rows = stream(query, setDis)) {
+            return rows.collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public Stream<HMap> stream(Query query) {
+        return stream(query, setDis);
+    }
+
+    @Override
+    public Stream<HMap> stream(Query query, boolean fillDii) {
+        Filter filter = query.getFilter();
+        Where where = where(filter);
+        String order = orderBy(query);
+
+        if (order == null) {
+            // Sorted in memory, keeping only the rows up to the end of the page.
+            TopK top = new TopK(query);
+            try (Stream<HMap> rows = select(query.toString(), filter, where, "", null, fillDii)) {
+                rows.forEach(top::offer);
+            }
+            return fillDii(top.page().stream().map(query::project), fillDii);
+        }
+
+        // If the database evaluates the whole filter, only the returned tags need to be read, and the page can be
+        // pushed down along with the order. Pages of unordered rows would differ from query to query.
+        boolean exact = where != null && where.exact;
+        Set<String> tags = exact ? query.getTags() : null;
+        Stream<HMap> rows;
+        if (dialect != null && exact && query.isPaged() && !order.isEmpty())
+            rows = select(query.toString(), filter, where, order + dialect.page(query.getOffset(), query.getLimit()),
+                    tags, fillDii);
+        else
+            rows = query.page(select(query.toString(), filter, where, order, tags, fillDii));
+        if (!exact && query.getTags() != null)
+            rows = rows.map(query::project);
+        return fillDii(rows, fillDii);
+    }
+
     @Override
     public int count(Filter filter) {
-        final MutableInt count = new MutableInt();
-        readAll(filter, row -> count.increment(), false);
-        return count.intValue();
+        if (filter == Filter.ALL) {
+            long start = System.nanoTime();
+            int count = rowCount();
+            if (stats)
+                saveStats(filter.toString(), count, count, false, System.nanoTime() - start,
+                        System.currentTimeMillis());
+            return count;
+        }
+
+        Where where = where(filter);
+        if (where != null && where.exact) {
+            long start = System.nanoTime();
+            String sql = "SELECT COUNT(*) FROM " + name + " WHERE " + where.sql;
+            int count;
+            if (where.params.isEmpty())
+                // Executed as a plain statement, as in query.
+                count = jt.queryForObject(sql, Integer.class);
+            else
+                count = jt.queryForObject(sql, where.params.toArray(), Integer.class);
+
+            if (stats)
+                saveStats(filter.toString(), count, count, false, System.nanoTime() - start,
+                        System.currentTimeMillis());
+            return count;
+        }
+
+        // The rest of the filter is applied to the rows selected by the where clause, if any.
+        try (Stream<HMap> rows = select(filter.toString(), filter, where, "", null, false)) {
+            return (int) rows.count();
+        }
     }
 
     @Override
@@ -162,14 +377,15 @@ public class SqlTable implements Table {
         long start = System.nanoTime();
         final MutableInt count = new MutableInt();
         final MutableInt included = new MutableInt();
+        final Where where = where(filter);
 
         try {
-            jt.query(select, new RowCallbackHandler() {
+            query(where, new RowCallbackHandler() {
                 @Override
                 public void processRow(ResultSet rs) throws SQLException {
                     HMap map = toMap(rs.getString(1));
                     count.increment();
-                    if (filter.include(map, pather)) {
+                    if (residual(where, filter, map)) {
                         fillDii(map, disCache);
                         consumer.accept(map);
                         included.increment();
@@ -188,20 +404,47 @@ public class SqlTable implements Table {
 
     @Override
     public void insert(HMap map) {
+        insertImpl(map);
+        fireInsert(map);
+    }
+
+    /**
+     * Inserts the row without notifying the listeners.
+     */
+    void insertImpl(HMap map) {
         HReference id = map.id();
         if (id == null)
             throw new RuntimeException("id is required");
 
         clean(map);
 
-        jt.update(insert, id.getId(), map.disOrNull(), toString(map));
+        transact(() -> {
+            jt.update(insert, id.getId(), map.disOrNull(), toString(map));
+            if (tagIndex)
+                jt.batchUpdate(tagInsert, tags(map, new ArrayList<>()));
+            return null;
+        });
+    }
 
+    void fireInsert(HMap map) {
         for (TableListener l : listeners)
             l.insert(map);
     }
 
     @Override
     public void batchInsert(List<HMap> rows) {
+        transact(() -> {
+            batchInsertImpl(rows);
+            return null;
+        });
+        fireBatchInsert(rows);
+    }
+
+    /**
+     * Inserts the rows using a JDBC batch without notifying the listeners. Should be run in a transaction if there is
+     * a tag index.
+     */
+    void batchInsertImpl(List<HMap> rows) {
         jt.batchUpdate(insert, new BatchPreparedStatementSetter() {
             @Override
             public void setValues(PreparedStatement ps, int i) throws SQLException {
@@ -223,12 +466,30 @@ public class SqlTable implements Table {
             }
         });
 
+        if (tagIndex) {
+            List<Object[]> batch = new ArrayList<>();
+            for (HMap row : rows)
+                tags(row, batch);
+            jt.batchUpdate(tagInsert, batch);
+        }
+    }
+
+    void fireBatchInsert(List<HMap> rows) {
         for (TableListener l : listeners)
             l.batchInsert(rows);
     }
 
     @Override
     public int updateById(HMap map) {
+        int count = updateImpl(map);
+        fireUpdate(map, count);
+        return count;
+    }
+
+    /**
+     * Updates the row without notifying the listeners.
+     */
+    int updateImpl(HMap map) {
         HReference id = map.id();
         if (id == null)
             throw new RuntimeException("id is required");
@@ -236,21 +497,75 @@ public class SqlTable implements Table {
 
         clean(map);
 
-        int count = jt.update(update, dis, toString(map), id.getId());
+        return transact(() -> {
+            int c = jt.update(update, dis, toString(map), id.getId());
+            if (tagIndex && c > 0) {
+                jt.update(tagDelete, id.getId());
+                jt.batchUpdate(tagInsert, tags(map, new ArrayList<>()));
+            }
+            return c;
+        });
+    }
 
+    void fireUpdate(HMap map, int count) {
         for (TableListener l : listeners)
             l.update(map, count);
+    }
 
-        return count;
+    /**
+     * Updates the given rows using a JDBC batch.
+     * 
+     * @return the update counts of the rows, as returned by the driver
+     */
+    public int[] batchUpdate(List<HMap> rows) {
+        int[] counts = batchUpdateImpl(rows);
+        fireBatchUpdate(rows, counts);
+        return counts;
     }
 
-    @Override
-    public int deleteById(String id) {
-        int count = jt.update(delete, id);
+    /**
+     * Updates the rows using a JDBC batch without notifying the listeners.
+     */
+    int[] batchUpdateImpl(List<HMap> rows) {
+        final List<Object[]> params = new ArrayList<>(rows.size());
+        for (HMap row : rows) {
+            HReference id = row.id();
+            if (id == null)
+                throw new RuntimeException("id is required");
+            String dis = row.disOrNull();
+            clean(row);
+            params.add(new Object[] { dis, toString(row), id.getId() });
+        }
 
-        for (TableListener l : listeners)
-            l.deleteById(id, count);
+        return transact(() -> {
+            int[] c = jt.batchUpdate(update, params);
+            if (tagIndex) {
+                List<Object[]> deletes = new ArrayList<>();
+                List<Object[]> inserts = new ArrayList<>();
+                for (int i = 0; i < rows.size(); i++) {
+                    if (c[i] != 0) {
+                        deletes.add(new Object[] { rows.get(i).id().getId() });
+                        tags(rows.get(i), inserts);
+                    }
+                }
+                jt.batchUpdate(tagDelete, deletes);
+                jt.batchUpdate(tagInsert, inserts);
+            }
+            return c;
+        });
+    }
 
+    void fireBatchUpdate(List<HMap> rows, int[] counts) {
+        for (TableListener l : listeners) {
+            for (int i = 0; i < rows.size(); i++)
+                l.update(rows.get(i), counts[i]);
+        }
+    }
+
+    @Override
+    public int deleteById(String id) {
+        int count = deleteImpl(id);
+        fireDelete(id, count);
         return count;
     }
 
@@ -259,23 +574,91 @@ public class SqlTable implements Table {
         return deleteById(id.getId());
     }
 
+    /**
+     * Deletes the row without notifying the listeners.
+     */
+    int deleteImpl(String id) {
+        return transact(() -> {
+            int count = jt.update(delete, id);
+            if (tagIndex && count > 0)
+                jt.update(tagDelete, id);
+            return count;
+        });
+    }
+
+    void fireDelete(String id, int count) {
+        for (TableListener l : listeners)
+            l.deleteById(id, count);
+    }
+
+    /**
+     * Deletes the rows with the given ids using a JDBC batch.
+     * 
+     * @return the delete counts of the ids, as returned by the driver
+     */
+    public int[] batchDelete(List<String> ids) {
+        int[] counts = batchDeleteImpl(ids);
+        fireBatchDelete(ids, counts);
+        return counts;
+    }
+
+    /**
+     * Deletes the rows using a JDBC batch without notifying the listeners.
+     */
+    int[] batchDeleteImpl(List<String> ids) {
+        final List<Object[]> params = new ArrayList<>(ids.size());
+        for (String id : ids)
+            params.add(new Object[] { id });
+
+        return transact(() -> {
+            int[] c = jt.batchUpdate(delete, params);
+            if (tagIndex)
+                jt.batchUpdate(tagDelete, params);
+            return c;
+        });
+    }
+
+    void fireBatchDelete(List<String> ids, int[] counts) {
+        for (TableListener l : listeners) {
+            for (int i = 0; i < ids.size(); i++)
+                l.deleteById(ids.get(i), counts[i]);
+        }
+    }
+
     @Override
     public int deleteAll(final Filter filter) {
-        final MutableInt count = new MutableInt();
+        final List<String> ids = new ArrayList<>();
+        final Where where = where(filter);
 
-        jt.query(select, new RowCallbackHandler() {
-            @Override
-            public void processRow(ResultSet rs) throws SQLException {
-                HMap map = toMap(rs.getString(1));
-                if (filter.include(map, pather))
-                    count.add(jt.update(delete, map.id().getId()));
-            }
-        });
+        // Collect the ids first so that the deletes don't run while the read cursor is open.
+        if (where != null && where.exact) {
+            // No need to read the rows.
+            query(selectIds, where, new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    ids.add(rs.getString(1));
+                }
+            });
+        }
+        else {
+            query(where, new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    HMap map = toMap(rs.getString(1));
+                    if (residual(where, filter, map))
+                        ids.add(map.id().getId());
+                }
+            });
+        }
+
+        int count = 0;
+        if (!ids.isEmpty())
+            count = tt.execute(status -> delete(ids));
 
         for (TableListener l : listeners)
-            l.deleteAll(filter, count.intValue());
+            l.deleteAll(filter, count);
 
-        return count.intValue();
+        return count;
     }
 
     @Override
@@ -313,6 +696,454 @@ public class SqlTable implements Table {
         }
     };
 
+    /**
+     * Translates the filter into a where clause using the dialect, or returns null if the filter can't be pushed down.
+     */
+    Where where(Filter filter) {
+        SqlDialect r = resolver;
+        if (r == null)
+            return null;
+        return filter.resolve(r);
+    }
+
+    private void setTagIndex(boolean tagIndex) {
+        this.tagIndex = tagIndex;
+        resolver = tagIndex ? new TagIndexDialect(dialect, tagTable) : dialect;
+    }
+
+    /**
+     * Adds the tag index rows for the given map to the list.
+     */
+    static List<Object[]> tags(HMap map, List<Object[]> result) {
+        String id = map.id().getId();
+        for (Entry<String, HValue> e : map.entrySet()) {
+            String val = null;
+            if (SqlDialect.isCanonical(e.getValue())) {
+                val = toJson(e.getValue());
+                if (val.length() > MAX_INDEXED_VALUE)
+                    val = null;
+            }
+            result.add(new Object[] { e.getKey(), id, val });
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the given ids in chunks. Should be run in a transaction.
+     */
+    private int delete(List<String> ids) {
+        int chunkSize = deleteChunkSize;
+        int count = 0;
+        for (int from = 0; from < ids.size(); from += chunkSize) {
+            List<String> chunk = ids.subList(from, Math.min(from + chunkSize, ids.size()));
+            StringBuilder in = new StringBuilder(" WHERE id IN (");
+            for (int i = 0; i < chunk.size(); i++)
+                in.append(i == 0 ? "?" : ",?");
+            in.append(')');
+
+            Object[] params = chunk.toArray();
+            count += jt.update("DELETE FROM " + name + in, params);
+            if (tagIndex)
+                jt.update("DELETE FROM " + tagTable + in, params);
+        }
+        return count;
+    }
+
+    /**
+     * Runs the given work in a transaction. Writes made through this table within the work join the transaction.
+     */
+    void transaction(Runnable work) {
+        tt.execute(status -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs the given work in a transaction if there is a tag index that must be kept consistent with the table.
+     */
+    <T> T transact(Supplier<T> work) {
+        if (!tagIndex)
+            return work.get();
+        return tt.execute(status -> work.get());
+    }
+
+    /**
+     * Reads all rows of the table for loading into memory. The ids are split into the given number of ranges, each of
+     * which is read on its own connection, and the json is decoded in batches on the common fork-join pool. The
+     * consumer is called concurrently, and the progress, if not null, is called as each batch is decoded.
+     */
+    void loadAll(int connections, final Consumer<HMap> consumer, final MemoryTableOptions.LoadProgress progress) {
+        final int total = rowCount();
+
+        // Find the ids that split the table into ranges of about the same size.
+        List<String> bounds = new ArrayList<>();
+        for (int i = 1; i < connections; i++) {
+            List<String> bound = jt.queryForList(selectIds + " ORDER BY id LIMIT 1 OFFSET " + (long) total * i
+                    / connections, String.class);
+            if (!bound.isEmpty() && (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound.get(0))))
+                bounds.add(bound.get(0));
+        }
+
+        final AtomicInteger loaded = new AtomicInteger();
+        final Queue<ForkJoinTask<?>> decodes = new ConcurrentLinkedQueue<>();
+        List<Callable<Void>> ranges = new ArrayList<>();
+        for (int i = 0; i <= bounds.size(); i++) {
+            final String from = i == 0 ? null : bounds.get(i - 1);
+            final String to = i == bounds.size() ? null : bounds.get(i);
+            ranges.add(() -> {
+                List<String> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+                RowCallbackHandler rch = rs -> {
+                    if (Thread.currentThread().isInterrupted())
+                        throw new SQLException("Load interrupted");
+                    batch.add(rs.getString(1));
+                    if (batch.size() == LOAD_BATCH_SIZE) {
+                        decodes.add(decode(new ArrayList<>(batch), consumer, loaded, total, progress));
+                        batch.clear();
+                    }
+                };
+                if (from == null && to == null)
+                    jt.query(select, rch);
+                else if (from == null)
+                    jt.query(select + " WHERE id<?", rch, to);
+                else if (to == null)
+                    jt.query(select + " WHERE id>=?", rch, from);
+                else
+                    jt.query(select + " WHERE id>=? AND id<?", rch, from, to);
+                if (!batch.isEmpty())
+                    decodes.add(decode(batch, consumer, loaded, total, progress));
+                return null;
+            });
+        }
+
+        ExecutorService readers = Executors.newFixedThreadPool(ranges.size());
+        try {
+            for (Future<Void> f : readers.invokeAll(ranges))
+                f.get();
+            ForkJoinTask<?> decode;
+            while ((decode = decodes.poll()) != null)
+                decode.join();
+        }
+        catch (InterruptedException e) {
+            // Stop the readers too.
+            readers.shutdownNow();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            readers.shutdown();
+        }
+    }
+
+    private static ForkJoinTask<?> decode(List<String> batch, Consumer<HMap> consumer, AtomicInteger loaded,
+            int total, MemoryTableOptions.LoadProgress progress) {
+        return ForkJoinPool.commonPool().submit(() -> {
+            for (String json : batch)
+                consumer.accept(toMap(json));
+            int count = loaded.addAndGet(batch.size());
+            if (progress != null)
+                progress.progress(count, total);
+        });
+    }
+
+    /**
+     * Returns the number of rows in the table, without reading them.
+     */
+    int rowCount() {
+        return jt.queryForObject("SELECT COUNT(*) FROM " + name, Integer.class);
+    }
+
+    /**
+     * Returns the checksum of the ids of the rows in the table, reading only the ids.
+     */
+    long idChecksum() {
+        final long[] sum = new long[1];
+        jt.query(selectIds, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                sum[0] += hash(rs.getString(1));
+            }
+        });
+        return sum[0];
+    }
+
+    /**
+     * Returns the checksum of the ids and json of the rows in the table, as stored by the database. The json is read
+     * but not parsed.
+     */
+    long checksum() {
+        final long[] sum = new long[1];
+        jt.query("SELECT id, json FROM " + name, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                sum[0] += hash(hash(rs.getString(1)), rs.getString(2));
+            }
+        });
+        return sum[0];
+    }
+
+    /**
+     * Returns the hash of the given string, using 64-bit FNV-1a. The checksum of a set of rows is the sum of their
+     * hashes, so that it doesn't depend upon the order in which they are read.
+     */
+    static long hash(String s) {
+        return hash(0xcbf29ce484222325L, s);
+    }
+
+    /**
+     * Continues the hash h with the given string.
+     */
+    static long hash(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private boolean tableExists(final String name) {
+        return jt.execute(new ConnectionCallback<Boolean>() {
+            @Override
+            public Boolean doInConnection(Connection con) throws SQLException, DataAccessException {
+                try (ResultSet rs = con.getMetaData().getTables(null, null, name.toLowerCase(), null)) {
+                    return rs.next();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether the given table has an index whose first column is id, or null if the driver can't say.
+     */
+    private Boolean idIndexed(final String name) {
+        return jt.execute(new ConnectionCallback<Boolean>() {
+            @Override
+            public Boolean doInConnection(Connection con) throws DataAccessException {
+                try (ResultSet rs = con.getMetaData().getIndexInfo(null, null, name.toLowerCase(), false, true)) {
+                    while (rs.next()) {
+                        if (rs.getShort("ORDINAL_POSITION") == 1 && "id".equalsIgnoreCase(rs.getString("COLUMN_NAME")))
+                            return true;
+                    }
+                    return false;
+                }
+                catch (SQLException e) {
+                    // Older drivers don't understand the catalogs of newer servers.
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the select statement, restricted by the given where clause if it is not null.
+     */
+    void query(Where where, RowCallbackHandler rch) {
+        query(select, where, rch);
+    }
+
+    void query(String select, Where where, RowCallbackHandler rch) {
+        if (where == null)
+            jt.query(select, rch);
+        else if (where.params.isEmpty())
+            // Executed as a plain statement.
+            jt.query(select + " WHERE " + where.sql, rch);
+        else
+            jt.query(select + " WHERE " + where.sql, where.params.toArray(), rch);
+    }
+
+    /**
+     * Returns a lazy stream of the rows selected by the given where clause, or of all rows if it is null. The query is
+     * run when the first row is requested, and the cursor is closed when the stream is exhausted or closed.
+     */
+    Stream<HMap> rows(Where where) {
+        return rows(where, "", null);
+    }
+
+    /**
+     * As rows(Where), with the given clauses, e.g. ORDER BY, appended to the query.
+     * 
+     * @param tags
+     *            if not null, only these tags of the rows are read. The database extracts them if the dialect can,
+     *            and otherwise only they are decoded.
+     */
+    Stream<HMap> rows(Where where, String suffix, Set<String> tags) {
+        String project = tags == null || dialect == null ? null : dialect.project(tags);
+        Cursor cursor = new Cursor(project == null ? select : "SELECT " + project + " FROM " + name, where, suffix,
+                tags);
+        return StreamSupport.stream(cursor, false).onClose(cursor::close);
+    }
+
+    /**
+     * Returns a lazy stream of the rows that match the filter, which must be closed. Stats are saved when it is.
+     */
+    private Stream<HMap> select(final String query, final Filter filter, final Where where, String suffix,
+            Set<String> tags, final boolean fillDii) {
+        final long start = System.nanoTime();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger included = new AtomicInteger();
+
+        Stream<HMap> stream = rows(where, suffix, tags).filter(map -> {
+            count.incrementAndGet();
+            if (!residual(where, filter, map))
+                return false;
+            included.incrementAndGet();
+            return true;
+        });
+
+        if (stats)
+            stream = stream.onClose(() -> saveStats(query, count.get(), included.get(), fillDii,
+                    System.nanoTime() - start, System.currentTimeMillis()));
+        return stream;
+    }
+
+    /**
+     * Returns the ORDER BY clause for the sort of the query, an empty string if it has no sort, or null if the sort
+     * can't be pushed down. Only sorts by id can be, since the json values don't sort like the tag values. Paged
+     * queries without a sort are ordered by id where possible, so that their pages are stable.
+     */
+    private String orderBy(Query query) {
+        List<Query.Sort> sort = query.getSort();
+        String idOrder = dialect == null ? null : dialect.idOrder();
+        if (sort.isEmpty())
+            return idOrder != null && query.isPaged() ? " ORDER BY " + idOrder : "";
+        // Ids are unique, so any further sort tags make no difference.
+        if (idOrder == null || !"id".equals(sort.get(0).getTag()))
+            return null;
+        return " ORDER BY " + idOrder + (sort.get(0).isDescending() ? " DESC" : "");
+    }
+
+    private Stream<HMap> fillDii(Stream<HMap> rows, boolean fillDii) {
+        if (!fillDii)
+            return rows;
+        final Map<String, String> disCache = new HashMap<>();
+        return rows.map(map -> {
+            fillDii(map, disCache);
+            return map;
+        });
+    }
+
+    /**
+     * Reads the rows of a query from an open result set, one fetch at a time.
+     */
+    class Cursor extends Spliterators.AbstractSpliterator<HMap> {
+        private final String sql;
+        private final List<Object> params;
+        private final Set<String> tags;
+
+        private Connection con;
+        private boolean resetAutoCommit;
+        private Statement st;
+        private ResultSet rs;
+        private boolean done;
+
+        Cursor(String select, Where where, String suffix, Set<String> tags) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            sql = (where == null ? select : select + " WHERE " + where.sql) + suffix;
+            params = where == null ? Collections.emptyList() : where.params;
+            this.tags = tags;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super HMap> action) {
+            if (done)
+                return false;
+
+            String json;
+            try {
+                if (rs == null)
+                    open();
+                if (!rs.next()) {
+                    close();
+                    return false;
+                }
+                json = rs.getString(1);
+            }
+            catch (SQLException e) {
+                close();
+                throw jt.getExceptionTranslator().translate("Cursor", sql, e);
+            }
+
+            action.accept(tags == null ? toMap(json) : toMap(json, tags));
+            return true;
+        }
+
+        private void open() throws SQLException {
+            DataSource ds = jt.getDataSource();
+            con = DataSourceUtils.getConnection(ds);
+
+            // PostgreSQL only fetches rows in batches outside of auto-commit. Connections in a transaction are left as
+            // they are.
+            boolean transactional = DataSourceUtils.isConnectionTransactional(con, ds);
+            if (con.getAutoCommit() && !transactional) {
+                con.setAutoCommit(false);
+                resetAutoCommit = true;
+            }
+
+            // In a transaction the connection is shared with the rest of the work, including the dis lookups of this
+            // stream, and MySQL allows no other statements while it is streaming a result. So the dialect's fetch size
+            // is only used on a connection of the cursor's own.
+            int fetchSize = dialect == null || transactional ? STREAM_FETCH_SIZE : dialect.fetchSize();
+            if (params.isEmpty()) {
+                // Executed as a plain statement, as in query.
+                st = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                st.setFetchSize(fetchSize);
+                rs = st.executeQuery(sql);
+            }
+            else {
+                PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY);
+                st = ps;
+                ps.setFetchSize(fetchSize);
+                new ArgumentPreparedStatementSetter(params.toArray()).setValues(ps);
+                rs = ps.executeQuery();
+            }
+        }
+
+        void close() {
+            done = true;
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(st);
+            rs = null;
+            st = null;
+
+            if (con != null) {
+                if (resetAutoCommit) {
+                    try {
+                        // Ends the read-only transaction.
+                        con.setAutoCommit(true);
+                    }
+                    catch (SQLException e) {
+                        e.printStackTrace();
+                    }
+                }
+                DataSourceUtils.releaseConnection(con, jt.getDataSource());
+                con = null;
+            }
+        }
+    }
+
+    /**
+     * Applies whatever part of the filter was not evaluated by the database to a row.
+     */
+    boolean residual(Where where, Filter filter, HMap map) {
+        if (where != null && where.exact)
+            return true;
+        return filter.include(map, pather);
+    }
+
+    static String toJson(HValue value) {
+        StringWriter out = new StringWriter();
+        try {
+            new JsonWriter(JsonUtils.dbCtx(), out).writeObject(value);
+        }
+        catch (JsonException | IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
     static HMap toMap(String s) {
         JsonReader reader = new JsonReader(JsonUtils.dbCtx(), s);
         try {
@@ -323,6 +1154,27 @@ public class SqlTable implements Table {
         }
     }
 
+    /**
+     * Decodes only the given tags of the json. The json is still parsed, but the values of the other tags are not
+     * converted.
+     */
+    static HMap toMap(String s, Set<String> tags) {
+        try {
+            JsonObject o = new JsonTypeReader(s).read().toJsonObject();
+            JsonReader reader = new JsonReader(JsonUtils.dbCtx(), o);
+            HMap map = new HMap();
+            for (String tag : tags) {
+                JsonValue value = o.get(tag);
+                if (value != null)
+                    map.put(tag, Interner.value(tag, reader.read(HValue.class, value)));
+            }
+            return map;
+        }
+        catch (JsonException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     static String toString(HMap map) {
         StringWriter out = new StringWriter();
         try {
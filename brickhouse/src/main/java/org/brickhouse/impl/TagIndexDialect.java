@@ -0,0 +1,52 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+/**
+ * Translates tag existence and equality into lookups in a table's tag index, which has a row for each tag of each
+ * entity, along with the encoded value of the tag if it has a canonical encoding that fits in the val column. Equality
+ * on values that are too long to be indexed falls back to the base dialect.
+ */
+class TagIndexDialect extends SqlDialect {
+    private final SqlDialect base;
+    private final String table;
+
+    /**
+     * @param base
+     *            the dialect of the database, or null to use standard SQL with parameters.
+     * @param table
+     *            the name of the tag index table.
+     */
+    TagIndexDialect(SqlDialect base, String table) {
+        this.base = base;
+        this.table = table;
+    }
+
+    @Override
+    protected Where hasTag(String tag) {
+        return dialect().inTagIndex(table, tag, null);
+    }
+
+    @Override
+    protected Where eqJson(String tag, String json) {
+        if (json.length() <= SqlTable.MAX_INDEXED_VALUE)
+            return dialect().inTagIndex(table, tag, json);
+        if (base == null)
+            return approx(hasTag(tag));
+        return base.eqJson(tag, json);
+    }
+
+    @Override
+    protected String jsonParameter() {
+        return dialect().jsonParameter();
+    }
+
+    private SqlDialect dialect() {
+        return base == null ? this : base;
+    }
+}
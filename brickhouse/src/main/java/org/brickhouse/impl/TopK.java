@@ -0,0 +1,69 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.brickhouse.Query;
+import org.brickhouse.datatype.HMap;
+
+/**
+ * Collects the page of a sorted query from rows offered in any order. Only the rows up to the end of the page are
+ * kept, in a heap whose head is the last of them, so each row costs log(offset + limit) and a page of 50 out of
+ * hundreds of thousands of matches needs neither a full sort nor a copy of the matches. Without a limit all rows are
+ * kept and sorted at the end.
+ */
+class TopK {
+    private final Comparator<HMap> comparator;
+    private final int offset;
+    private final int k;
+    private final PriorityQueue<HMap> heap;
+    private final List<HMap> all;
+
+    TopK(Query query) {
+        comparator = query.comparator();
+        offset = query.getOffset();
+        long end = (long) offset + query.getLimit();
+        if (query.getLimit() < 0 || end > Integer.MAX_VALUE - 1) {
+            k = -1;
+            heap = null;
+            all = new ArrayList<>();
+        }
+        else {
+            k = (int) end;
+            heap = new PriorityQueue<>(Math.min(k, 1024) + 1, comparator.reversed());
+            all = null;
+        }
+    }
+
+    void offer(HMap row) {
+        if (all != null)
+            all.add(row);
+        else if (heap.size() < k)
+            heap.add(row);
+        else if (k > 0 && comparator.compare(row, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(row);
+        }
+    }
+
+    /**
+     * Returns the rows of the page in order.
+     */
+    List<HMap> page() {
+        List<HMap> rows = all != null ? all : new ArrayList<>(heap);
+        if (rows.size() <= offset)
+            return Collections.emptyList();
+        rows.sort(comparator);
+        return rows.subList(offset, rows.size());
+    }
+}
@@ -0,0 +1,389 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.brickhouse.impl.MemoryTable.Write;
+import org.brickhouse.impl.MemoryTable.WriteType;
+
+/**
+ * An append-only log of the writes made to a memory table, so that writes that have been acknowledged but not yet
+ * written to the database survive a crash. The log is replayed into the database when the table is next opened.
+ * 
+ * The log is a sequence of memory mapped segment files. Each segment counts the writes in it that have not yet been
+ * written to the database, and segments are deleted once they and all older segments have been written. Records are:
+ * 
+ * <pre>
+ * int     length of the body
+ * int     CRC32 of the body
+ * body:
+ *   long  sequence number
+ *   byte  write type
+ *   int   length of the id, followed by its UTF-8 bytes
+ *   int   length of the row json, or -1 if there is no row, followed by its UTF-8 bytes
+ * </pre>
+ * 
+ * A zero length marks the end of a segment, and a record that is truncated or fails its CRC is taken to be the torn
+ * end of a segment that was being written during a crash.
+ * 
+ * If sync is enabled, writers wait until their records have been forced to disk. Concurrent writers share forces, so
+ * that one force typically covers the records of many writers. Without sync, records survive the death of the JVM but
+ * not of the operating system.
+ */
+class WriteAheadLog implements Closeable {
+    static final String SUFFIX = ".wal";
+    static final String DEAD_LETTER = "dead-letter.txt";
+    static final int HEADER_SIZE = 8;
+
+    private final File dir;
+    private final int segmentSize;
+    private final boolean sync;
+
+    // Appending, guarded by this.
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final List<File> recovered = new ArrayList<>();
+    private Segment current;
+    private long seq;
+    private int nextSegment;
+    private boolean closed;
+    /** Records after this sequence number are not in the last snapshot, so their segments must be kept. */
+    private long snapshotMark = Long.MAX_VALUE;
+
+    // Group commit, guarded by syncLock.
+    private final Object syncLock = new Object();
+    private long durable;
+    private boolean syncing;
+
+    static class Segment {
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buf;
+        /** The number of writes in the segment that have not yet been written to the database. */
+        final AtomicInteger pending = new AtomicInteger();
+        /** Whether the segment is full, and so will not receive any more writes. */
+        volatile boolean rolled;
+        /** The sequence number of the last write in the segment. */
+        volatile long lastSeq;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            buf = channel.map(MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * @param dir
+     *            the directory in which to keep the segment files. It is created if it doesn't exist.
+     * @param segmentSize
+     *            the size of each segment file. Records that are larger than this get a segment of their own.
+     * @param sync
+     *            whether to force records to disk before they are acknowledged.
+     */
+    WriteAheadLog(File dir, int segmentSize, boolean sync) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create write-ahead log directory " + dir);
+    }
+
+    /**
+     * Reads the writes in the segments left by a previous instance, in the order in which they were made. Once they
+     * have been written to the database, discardRecovered must be called.
+     */
+    List<Write> recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        Arrays.sort(files);
+
+        List<Write> writes = new ArrayList<>();
+        for (File file : files) {
+            recovered.add(file);
+            String name = file.getName();
+            nextSegment = Math.max(nextSegment, Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()))
+                    + 1);
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+                Write write;
+                while ((write = read(buf)) != null) {
+                    writes.add(write);
+                    seq = Math.max(seq, write.seq);
+                }
+            }
+        }
+        return writes;
+    }
+
+    /**
+     * Deletes the segments that were read by recover.
+     */
+    void discardRecovered() throws IOException {
+        for (File file : recovered) {
+            if (!file.delete())
+                throw new IOException("Could not delete write-ahead log segment " + file);
+        }
+        recovered.clear();
+    }
+
+    /**
+     * Continues the sequence numbers after the given one if they are not already past it, so that new records are
+     * ordered after those in a snapshot that outlived the log.
+     */
+    synchronized void startAfter(long seq) {
+        this.seq = Math.max(this.seq, seq);
+    }
+
+    /**
+     * Returns the sequence number of the last appended write.
+     */
+    synchronized long seq() {
+        return seq;
+    }
+
+    /**
+     * Records that a snapshot containing all writes up to the given sequence number has been written. Until this is
+     * first called segments are kept only until they have been written to the database. After it, segments are also
+     * kept until they are covered by a snapshot, so that the snapshot can be brought up to date from the log.
+     */
+    synchronized void snapshotted(long mark) {
+        snapshotMark = mark;
+        trim();
+    }
+
+    /**
+     * Appends the given write to the log, and sets its sequence number and segment.
+     */
+    void append(Write write) {
+        byte[] id = write.id.getBytes(StandardCharsets.UTF_8);
+        byte[] row = write.row == null ? null : SqlTable.toString(write.row).getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 1 + 4 + id.length + 4 + (row == null ? 0 : row.length);
+
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("Write-ahead log is closed");
+
+            // Leave room for the end marker.
+            if (current == null || current.buf.remaining() < HEADER_SIZE + length + 4)
+                roll(HEADER_SIZE + length + 4);
+
+            write.seq = ++seq;
+            write.segment = current;
+            current.lastSeq = seq;
+            current.pending.incrementAndGet();
+
+            MappedByteBuffer buf = current.buf;
+            int start = buf.position();
+            buf.position(start + HEADER_SIZE);
+            buf.putLong(write.seq);
+            buf.put((byte) write.type.ordinal());
+            buf.putInt(id.length);
+            buf.put(id);
+            if (row == null)
+                buf.putInt(-1);
+            else {
+                buf.putInt(row.length);
+                buf.put(row);
+            }
+
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buf.duplicate();
+            body.position(start + HEADER_SIZE);
+            body.limit(start + HEADER_SIZE + length);
+            crc.update(body);
+
+            // Write the length last so that a reader never sees a length without its record.
+            buf.putInt(start + 4, (int) crc.getValue());
+            buf.putInt(start, length);
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number has been forced to disk, if sync is enabled. If a force is
+     * already in progress, the caller waits for it and then forces on behalf of all of the records appended since.
+     */
+    void sync(long seq) {
+        if (!sync)
+            return;
+
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && durable < seq) {
+                    try {
+                        syncLock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (durable >= seq)
+                    return;
+                syncing = true;
+            }
+
+            long target;
+            Segment segment;
+            synchronized (this) {
+                target = this.seq;
+                segment = current;
+            }
+
+            boolean forced = false;
+            try {
+                // Segments are forced when they are rolled, so only the current one needs to be forced.
+                segment.buf.force();
+                forced = true;
+            }
+            finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    if (forced && target > durable)
+                        durable = target;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the given number of writes in the segment have been written to the database.
+     */
+    void release(Segment segment, int count) {
+        if (segment.pending.addAndGet(-count) == 0 && segment.rolled) {
+            synchronized (this) {
+                trim();
+            }
+        }
+    }
+
+    /**
+     * Records a write that could not be written to the database and has been given up, so that it can be applied by
+     * hand. Each write is a line of its type, id, row json (or null) and the reason, separated by tabs.
+     */
+    synchronized void deadLetter(Write write, String reason) throws IOException {
+        String line = write.type + "\t" + write.id + "\t" + (write.row == null ? "null" : SqlTable.toString(write.row))
+                + "\t" + reason.replaceAll("\\s+", " ") + "\n";
+        try (FileChannel channel = FileChannel.open(new File(dir, DEAD_LETTER).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Forces the current segment, and deletes all of the segments if all of their writes have been written to the
+     * database and are covered by the last snapshot.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        if (current != null) {
+            current.buf.force();
+            current.rolled = true;
+            trim();
+            current = null;
+        }
+    }
+
+    //
+    // Private
+    //
+    private void roll(int minSize) {
+        try {
+            if (current != null) {
+                current.buf.putInt(current.buf.position(), 0);
+                current.buf.force();
+                current.rolled = true;
+            }
+            File file = new File(dir, String.format("%010d", nextSegment++) + SUFFIX);
+            current = new Segment(file, Math.max(segmentSize, minSize));
+            segments.add(current);
+            trim();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deletes the oldest segments that have been fully written to the database and that are covered by the last
+     * snapshot. Segments are only deleted in order, so that a replay never applies a write from an old segment over a
+     * newer write from a segment that was deleted.
+     */
+    private void trim() {
+        Segment head;
+        while ((head = segments.peek()) != null && head.rolled && head.pending.get() == 0
+                && head.lastSeq <= snapshotMark) {
+            segments.remove();
+            try {
+                head.channel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!head.file.delete())
+                System.out.println("WARN: could not delete write-ahead log segment " + head.file);
+        }
+    }
+
+    private static Write read(ByteBuffer buf) {
+        if (buf.remaining() < HEADER_SIZE)
+            return null;
+        int length = buf.getInt();
+        int crc = buf.getInt();
+        if (length <= 0 || length > buf.remaining())
+            return null;
+
+        ByteBuffer body = buf.slice();
+        body.limit(length);
+        CRC32 crc32 = new CRC32();
+        crc32.update(body.duplicate());
+        if ((int) crc32.getValue() != crc)
+            return null;
+        buf.position(buf.position() + length);
+
+        long seq = body.getLong();
+        WriteType type = WriteType.values()[body.get()];
+        String id = readString(body);
+        String row = readString(body);
+
+        Write write = new Write(type, id, row == null ? null : SqlTable.toMap(row));
+        write.seq = seq;
+        return write;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0)
+            return null;
+        byte[] b = new byte[length];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,155 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+/**
+ * A snapshot of the state of a memory table's write-behind, for monitoring how far the database is behind the table.
+ */
+public class WriteBehindStats {
+    private final int pending;
+    private final int capacity;
+    private final long oldestAge;
+    private final long submitted;
+    private final long written;
+    private final long failures;
+    private final double writesPerSecond;
+    private final long batches;
+    private final double lastBatchMillis;
+    private final double averageBatchMillis;
+    private final double maxBatchMillis;
+
+    WriteBehindStats(int pending, int capacity, long oldestAge, long submitted, long written, long failures,
+            double writesPerSecond, long batches, double lastBatchMillis, double averageBatchMillis,
+            double maxBatchMillis) {
+        this.pending = pending;
+        this.capacity = capacity;
+        this.oldestAge = oldestAge;
+        this.submitted = submitted;
+        this.written = written;
+        this.failures = failures;
+        this.writesPerSecond = writesPerSecond;
+        this.batches = batches;
+        this.lastBatchMillis = lastBatchMillis;
+        this.averageBatchMillis = averageBatchMillis;
+        this.maxBatchMillis = maxBatchMillis;
+    }
+
+    /**
+     * Combines the stats of the partitions of a write-behind.
+     */
+    static WriteBehindStats sum(WriteBehindStats... stats) {
+        if (stats.length == 1)
+            return stats[0];
+
+        int pending = 0;
+        int capacity = 0;
+        long oldestAge = 0;
+        long submitted = 0;
+        long written = 0;
+        long failures = 0;
+        double writesPerSecond = 0;
+        long batches = 0;
+        double lastBatchMillis = 0;
+        double totalBatchMillis = 0;
+        double maxBatchMillis = 0;
+        for (WriteBehindStats s : stats) {
+            pending += s.pending;
+            capacity += s.capacity;
+            oldestAge = Math.max(oldestAge, s.oldestAge);
+            submitted += s.submitted;
+            written += s.written;
+            failures += s.failures;
+            writesPerSecond += s.writesPerSecond;
+            batches += s.batches;
+            lastBatchMillis = Math.max(lastBatchMillis, s.lastBatchMillis);
+            totalBatchMillis += s.averageBatchMillis * s.batches;
+            maxBatchMillis = Math.max(maxBatchMillis, s.maxBatchMillis);
+        }
+        return new WriteBehindStats(pending, capacity, oldestAge, submitted, written, failures, writesPerSecond,
+                batches, lastBatchMillis, batches == 0 ? 0 : totalBatchMillis / batches, maxBatchMillis);
+    }
+
+    /**
+     * The number of writes that have not yet been written to the database, including those being written.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * The capacity of the queue.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The age in milliseconds of the oldest write that has not yet been written to the database, or 0 if there is none.
+     */
+    public long getOldestAge() {
+        return oldestAge;
+    }
+
+    /**
+     * The total number of writes made to the table.
+     */
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * The total number of rows written to the database after writes to the same id were coalesced.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * The total number of rows that could not be written to the database and were given up. Rows that failed
+     * transiently and are being retried are counted as pending.
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * The rate at which writes are being taken from the queue, as an exponentially weighted moving average over about a
+     * minute.
+     */
+    public double getWritesPerSecond() {
+        return writesPerSecond;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * The latency of the most recent batch. For a partitioned write-behind, the longest of the most recent batches of
+     * the partitions.
+     */
+    public double getLastBatchMillis() {
+        return lastBatchMillis;
+    }
+
+    public double getAverageBatchMillis() {
+        return averageBatchMillis;
+    }
+
+    public double getMaxBatchMillis() {
+        return maxBatchMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WriteBehindStats [pending=%d/%d, oldestAge=%dms, submitted=%d, written=%d, failures=%d, "
+                + "writesPerSecond=%.1f, batches=%d, lastBatch=%.2fms, averageBatch=%.2fms, maxBatch=%.2fms]",
+                pending, capacity, oldestAge, submitted, written, failures, writesPerSecond, batches,
+                lastBatchMillis, averageBatchMillis, maxBatchMillis);
+    }
+}
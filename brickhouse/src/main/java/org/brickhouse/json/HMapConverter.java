@@ -14,6 +14,7 @@ import java.util.Map;
 
 import org.brickhouse.datatype.HMap;
 import org.brickhouse.datatype.HValue;
+import org.brickhouse.datatype.Interner;
 
 import com.serotonin.json.JsonException;
 import com.serotonin.json.JsonReader;
@@ -47,7 +48,7 @@ public class HMapConverter implements ClassConverter {
         HMap map = new HMap();
         for (Map.Entry<String, JsonValue> e : o.entrySet()) {
             HValue val = reader.read(HValue.class, e.getValue());
-            map.put(e.getKey(), val);
+            map.put(Interner.string(e.getKey()), Interner.value(e.getKey(), val));
         }
 
         return map;
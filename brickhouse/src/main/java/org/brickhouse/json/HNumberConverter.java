@@ -15,6 +15,7 @@ import java.util.Locale;
 
 import org.apache.commons.lang3.StringUtils;
 import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.Interner;
 
 import com.serotonin.json.JsonException;
 import com.serotonin.json.JsonReader;
@@ -113,7 +114,7 @@ public class HNumberConverter implements ClassConverter {
 
         if (StringUtils.isEmpty(s))
             return new HNumber(d);
-        return new HNumber(d, s);
+        return new HNumber(d, Interner.string(s));
     }
 
     @Override
@@ -34,6 +34,7 @@ import org.brickhouse.datatype.HTime;
 import org.brickhouse.datatype.HTimeZone;
 import org.brickhouse.datatype.HUri;
 import org.brickhouse.datatype.HValue;
+import org.brickhouse.datatype.Interner;
 import org.brickhouse.filter.Filter;
 import org.brickhouse.io.HGridReader;
 
@@ -130,7 +131,7 @@ public class ZincReader implements HGridReader {
             for (int i = 0; i < numCols; ++i) {
                 skipSpace();
                 if (cur != ',' && cur != '\n')
-                    cells[i] = readVal();
+                    cells[i] = readVal(columns.get(i).getName());
                 skipSpace();
                 if (i + 1 < numCols) {
                     if (cur != ',')
@@ -179,7 +180,7 @@ public class ZincReader implements HGridReader {
             HValue val = HMarker.VALUE;
             if (cur == ':') {
                 consume();
-                val = readVal();
+                val = readVal(name);
             }
             map.put(name, val);
 
@@ -222,7 +223,7 @@ public class ZincReader implements HGridReader {
             if (cur == ':') {
                 consume();
                 skipSpace();
-                val = readVal();
+                val = readVal(name);
                 skipSpace();
             }
             meta.put(name, val);
@@ -238,7 +239,7 @@ public class ZincReader implements HGridReader {
             s.append((char) cur);
             consume();
         }
-        return s.toString();
+        return Interner.string(s.toString());
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -247,12 +248,20 @@ public class ZincReader implements HGridReader {
 
     /** Read scalar value. */
     public HValue readScalar() {
-        HValue val = readVal();
+        HValue val = Interner.value(readVal());
         if (cur >= 0)
             throw errChar("Expected end of stream");
         return val;
     }
 
+    /**
+     * Read a single scalar value of the given tag from the stream, sharing it through the Interner unless it is unique
+     * to the entity.
+     */
+    private HValue readVal(String tag) {
+        return Interner.value(tag, readVal());
+    }
+
     /** Read a single scalar value from the stream. */
     private HValue readVal() {
         if (isDigit(cur))
@@ -500,7 +509,7 @@ public class ZincReader implements HGridReader {
                 s.append((char) cur);
                 consume();
             }
-            unit = s.toString();
+            unit = Interner.string(s.toString());
         }
 
         return new HNumber(val, unit);
@@ -734,35 +743,35 @@ public class ZincReader implements HGridReader {
 
         if (cur == '=' && peek == '=') {
             consumeCmp();
-            return Filter.eq(path, readVal());
+            return Filter.eq(path, readVal(path));
         }
         if (cur == '!' && peek == '=') {
             consumeCmp();
-            return Filter.ne(path, readVal());
+            return Filter.ne(path, readVal(path));
         }
         if (cur == '<' && peek == '=') {
             consumeCmp();
-            return Filter.le(path, readVal());
+            return Filter.le(path, readVal(path));
         }
         if (cur == '>' && peek == '=') {
             consumeCmp();
-            return Filter.ge(path, readVal());
+            return Filter.ge(path, readVal(path));
         }
         if (cur == '<') {
             consumeCmp();
-            return Filter.lt(path, readVal());
+            return Filter.lt(path, readVal(path));
         }
         if (cur == '>') {
             consumeCmp();
-            return Filter.gt(path, readVal());
+            return Filter.gt(path, readVal(path));
         }
         if (cur == '~' && peek == '~') {
             consumeCmp();
-            return Filter.ilike(path, readVal());
+            return Filter.ilike(path, readVal(path));
         }
         if (cur == '~') {
             consumeCmp();
-            return Filter.like(path, readVal());
+            return Filter.like(path, readVal(path));
         }
 
         return Filter.has(path);
@@ -0,0 +1,117 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.datatype;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HMapTest {
+    @Test
+    public void copyOnWrite() {
+        HMap row = new HMap().put("id", new HReference("a")).put("point").put("dis", "A");
+        HMap copy = row.copyOnWrite();
+        Assert.assertEquals(row, copy);
+
+        // Modifying the copy doesn't change the original, and vice versa.
+        copy.put("dis", "B");
+        Assert.assertEquals("A", row.getString("dis"));
+        row.delete("point");
+        Assert.assertTrue(copy.has("point"));
+
+        // Entries of shared storage can be changed and removed without changing the original.
+        copy = row.copyOnWrite();
+        for (Entry<String, HValue> e : copy.entrySet()) {
+            if (e.getKey().equals("dis")) {
+                Assert.assertEquals(new HString("A"), e.setValue(new HString("C")));
+                Assert.assertEquals(new HString("C"), e.getValue());
+            }
+        }
+        Assert.assertEquals("C", copy.getString("dis"));
+        Assert.assertEquals("A", row.getString("dis"));
+
+        copy = row.copyOnWrite();
+        Set<String> keys = copy.keySet();
+        Iterator<Entry<String, HValue>> iter = copy.entrySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().getKey().equals("dis"))
+                iter.remove();
+        }
+        Assert.assertFalse(copy.has("dis"));
+        Assert.assertTrue(row.has("dis"));
+        // Sets that were taken before the storage was copied see the copy.
+        Assert.assertEquals(1, keys.size());
+        Assert.assertFalse(keys.contains("dis"));
+        copy.keySet().remove("id");
+        Assert.assertTrue(copy.isEmpty());
+        Assert.assertEquals(2, row.keySet().size());
+    }
+
+    @Test
+    public void compact() {
+        Shapes shapes = new Shapes();
+        HMap a = new HMap().put("id", new HReference("a")).put("point").put("n", new HNumber(1));
+        HMap b = new HMap().put("n", new HNumber(2)).put("point").put("id", new HReference("b"));
+        HMap ca = a.compact(shapes);
+        HMap cb = b.compact(shapes);
+        Assert.assertEquals(a, ca);
+        Assert.assertEquals(ca, a);
+        Assert.assertEquals(a.hashCode(), ca.hashCode());
+        Assert.assertSame(ca, ca.compact(shapes));
+        Assert.assertEquals(new HNumber(2), cb.get("n"));
+        Assert.assertNull(cb.get("x"));
+
+        // The keys keep their order, so maps with the same keys in the same order share a shape.
+        Assert.assertEquals("[id, point, n]", ca.keySet().toString());
+        Assert.assertEquals("[n, point, id]", cb.keySet().toString());
+        Assert.assertEquals(2, shapes.size());
+        new HMap().put("id", new HReference("c")).put("point").put("n", new HNumber(3)).compact(shapes);
+        Assert.assertEquals(2, shapes.size());
+
+        // Modifying a compact map moves it to regular storage.
+        cb.put("x").delete("point");
+        Assert.assertEquals("[n, id, x]", cb.keySet().toString());
+        Assert.assertTrue(ca.has("point"));
+    }
+
+    @Test
+    public void shapeLimit() {
+        Shapes shapes = new Shapes(1);
+        HMap a = new HMap().put("a");
+        HMap b = new HMap().put("b");
+        Assert.assertNotSame(a, a.compact(shapes));
+        Assert.assertFalse(shapes.isFull());
+
+        // Maps with new key sets are left as they are once the limit is reached, but those with known ones are not.
+        Assert.assertSame(b, b.compact(shapes));
+        Assert.assertTrue(shapes.isFull());
+        HMap a2 = new HMap().put("a");
+        Assert.assertNotSame(a2, a2.compact(shapes));
+
+        // Each set of shapes has its own limit.
+        Assert.assertNotSame(b, b.compact(new Shapes(1)));
+    }
+
+    @Test
+    public void fromMap() {
+        Map<String, Object> source = new LinkedHashMap<>();
+        source.put("id", new HReference("a"));
+        source.put("point", HMarker.VALUE);
+
+        HMap map = new HMap(source);
+        Assert.assertEquals(new HMap().put("id", new HReference("a")).put("point"), map);
+        map.put("dis", "A");
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals(2, source.size());
+    }
+}
@@ -0,0 +1,53 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.filter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompileTest {
+    @Test
+    public void equivalence() {
+        final Map<String, HMap> rows = new HashMap<>();
+        rows.put("s", new HMap().put("id", new HReference("s")).put("site").put("geoCity", "Ottawa")
+                .put("dis", "Head Office"));
+        rows.put("a", new HMap().put("id", new HReference("a")).put("equip").put("ahu")
+                .put("siteRef", new HReference("s")).put("dis", "AHU-1").put("number", new HNumber(50, "kW")));
+        rows.put("p", new HMap().put("id", new HReference("p")).put("point").put("siteRef", new HReference("s"))
+                .put("equipRef", new HReference("a")).put("number", new HNumber(20)).put("kind", "Number")
+                .put("mod", new HDateTime(2015, 3, 1, 12, 0, 0, HTimeZone.UTC, 0)));
+        rows.put("q", new HMap().put("id", new HReference("q")).put("point").put("number", HNumber.NaN)
+                .put("date", new HDate(2015, 6, 1)).put("kind", "Bool").put("siteRef", new HReference("x")));
+
+        String[] filters = { "*", "point", "not point", "point and equip", "point or equip", "!(point or equip)",
+                "kind==\"Number\"", "kind!=\"Number\"", "siteRef==@s", "siteRef!=@s", "number==50kW", "number==50",
+                "number < 50", "number <= 50", "number > 20", "number >= 20", "number > \"20\"",
+                "mod >= 2015-01-01T00:00:00Z UTC", "mod < 2015-01-01T00:00:00Z UTC", "date <= 2015-06-01",
+                "dis~\"AHU%\"", "dis~\"%Office\"", "dis~\"%-%\"", "dis~~\"ahu%\"", "dis~~\"%OFF%\"",
+                "siteRef->geoCity==\"Ottawa\"", "equipRef->siteRef->site", "not equipRef->ahu",
+                "point and siteRef->geoCity==\"Ottawa\" and number > 10", "point and (equip or site or ahu)",
+                "(a or b) and (c or point) and not equip" };
+
+        for (String s : filters) {
+            Filter f = Filter.parse(s);
+            Filter.Matcher m = f.compile();
+            Assert.assertSame(m, f.compile());
+            for (HMap row : rows.values())
+                Assert.assertEquals(s + " on " + row, f.include(row, rows::get), m.include(row, rows::get));
+        }
+    }
+}
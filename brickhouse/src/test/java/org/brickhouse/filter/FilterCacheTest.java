@@ -0,0 +1,95 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.filter;
+
+import org.brickhouse.ParseException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FilterCacheTest {
+    @Test
+    public void lru() {
+        FilterCache cache = new FilterCache(2);
+        Filter a = cache.get("a", Filter::parse);
+        Assert.assertSame(a, cache.get("a", Filter::parse));
+        cache.get("b", Filter::parse);
+        cache.get("a", Filter::parse);
+        // b is now the least recently used.
+        cache.get("c", Filter::parse);
+        Assert.assertSame(a, cache.get("a", Filter::parse));
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(3, cache.getMisses());
+        Assert.assertEquals(1, cache.getEvictions());
+
+        cache.get("b", Filter::parse);
+        Assert.assertEquals(4, cache.getMisses());
+        Assert.assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void batch() {
+        FilterCache cache = new FilterCache(100);
+        for (int i = 0; i < 100; i++)
+            cache.get("t" + i, Filter::parse);
+        Filter recent = cache.get("t0", Filter::parse);
+
+        // A miss over the maximum evicts a tenth of the entries, so the next misses don't need to.
+        cache.get("x", Filter::parse);
+        Assert.assertEquals(90, cache.size());
+        Assert.assertEquals(11, cache.getEvictions());
+        Assert.assertSame(recent, cache.get("t0", Filter::parse));
+        Assert.assertNotNull(cache.get("x", Filter::parse));
+        for (int i = 0; i < 10; i++)
+            cache.get("y" + i, Filter::parse);
+        Assert.assertEquals(100, cache.size());
+        Assert.assertEquals(11, cache.getEvictions());
+    }
+
+    @Test
+    public void shrink() {
+        FilterCache cache = new FilterCache(5);
+        for (String s : new String[] { "a", "b", "c", "d", "e" })
+            cache.get(s, Filter::parse);
+        Filter a = cache.get("a", Filter::parse);
+
+        // The least recently used are evicted at once, without waiting for inserts.
+        cache.setMaxSize(2);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(3, cache.getEvictions());
+        Assert.assertSame(a, cache.get("a", Filter::parse));
+        cache.get("e", Filter::parse);
+        Assert.assertEquals(3, cache.getHits());
+
+        cache.setMaxSize(0);
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void disabled() {
+        FilterCache cache = new FilterCache(0);
+        cache.get("a and b", Filter::parse);
+        cache.get("a and b", Filter::parse);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void parse() {
+        Assert.assertSame(Filter.parse("point and siteRef==@s"), Filter.parse("point and siteRef==@s"));
+        try {
+            Filter.parse("point and");
+            Assert.fail();
+        }
+        catch (ParseException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.filter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PlannerTest {
+    private Planner planner;
+
+    @Before
+    public void init() {
+        final Map<String, Integer> counts = new HashMap<>();
+        counts.put("point", 9000);
+        counts.put("equip", 1000);
+        counts.put("ahu", 50);
+        counts.put("siteRef", 9900);
+
+        planner = new Planner(new Planner.Statistics() {
+            @Override
+            public int size() {
+                return 10000;
+            }
+
+            @Override
+            public int count(String tag) {
+                Integer count = counts.get(tag);
+                return count == null ? 0 : count;
+            }
+        });
+    }
+
+    @Test
+    public void reorder() {
+        Assert.assertEquals("ahu and equip", planner.plan(Filter.parse("equip and ahu")).toString());
+        Assert.assertEquals("equip and siteRef->geoCity==Ottawa",
+                planner.plan(Filter.parse("siteRef->geoCity==\"Ottawa\" and equip")).toString());
+        Assert.assertEquals("point or (equip or ahu)", planner.plan(Filter.parse("ahu or equip or point")).toString());
+    }
+
+    @Test
+    public void flatten() {
+        Assert.assertEquals("ahu and (equip and point)",
+                planner.plan(Filter.parse("(point and equip) and ahu")).toString());
+        Assert.assertEquals("ahu and (equip and (siteRef or point))",
+                planner.plan(Filter.parse("((siteRef or point) and equip) and ahu")).toString());
+        Assert.assertEquals("!(ahu and point)", planner.plan(Filter.parse("!(point and ahu)")).toString());
+    }
+
+    @Test
+    public void cached() {
+        // Reordered, so the plan is a new filter instance.
+        Filter filter = Filter.parse("siteRef->geoCity==\"Ottawa\" and equip");
+        Filter.Matcher m = planner.compile(filter);
+        Assert.assertSame(m, planner.compile(filter));
+
+        // A few changes don't cause a replan, but enough of them do.
+        for (int i = 0; i < 100; i++)
+            planner.changed();
+        Assert.assertSame(m, planner.compile(filter));
+        for (int i = 0; i < 1000; i++)
+            planner.changed();
+        Filter.Matcher m2 = planner.compile(filter);
+        Assert.assertNotSame(m, m2);
+        Assert.assertSame(m2, planner.compile(filter));
+
+        planner.invalidate();
+        Filter.Matcher m3 = planner.compile(filter);
+        Assert.assertNotSame(m2, m3);
+
+        // Planners sharing a filter keep their own plans.
+        Planner other = new Planner(new Planner.Statistics() {
+            @Override
+            public int size() {
+                return 10;
+            }
+
+            @Override
+            public int count(String tag) {
+                return -1;
+            }
+        });
+        Filter.Matcher o = other.compile(filter);
+        Assert.assertSame(m3, planner.compile(filter));
+        Assert.assertSame(o, other.compile(filter));
+    }
+
+    @Test
+    public void equivalent() {
+        final Map<String, HMap> rows = new HashMap<>();
+        rows.put("s", new HMap().put("id", new HReference("s")).put("site").put("geoCity", "Ottawa"));
+        rows.put("a", new HMap().put("id", new HReference("a")).put("equip").put("ahu").put("siteRef",
+                new HReference("s")));
+        rows.put("p", new HMap().put("id", new HReference("p")).put("point").put("siteRef", new HReference("s")));
+        rows.put("q", new HMap().put("id", new HReference("q")).put("point"));
+
+        String[] filters = { "equip and ahu", "point or ahu", "point and siteRef->geoCity==\"Ottawa\"",
+                "not siteRef and (point or equip)", "!(point and siteRef) and (ahu or point)", "*" };
+        for (String s : filters) {
+            Filter f = Filter.parse(s);
+            Filter plan = planner.plan(f);
+            for (HMap row : rows.values())
+                Assert.assertEquals(s, f.include(row, rows::get), plan.include(row, rows::get));
+        }
+    }
+
+    @Test
+    public void explain() {
+        String explain = planner.explain(Filter.parse("equip and ahu"));
+        Assert.assertTrue(explain, explain.startsWith("Plan: ahu and equip\n  and [rows ~5,"));
+        Assert.assertTrue(explain, explain.contains("\n    ahu [rows ~50,"));
+    }
+}
@@ -0,0 +1,68 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brickhouse.filter.Filter;
+import org.brickhouse.impl.WriteBehindTest.FakeTable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+public class CountTest {
+    @Test
+    public void sqlAll() {
+        List<String> sql = new ArrayList<>();
+        SqlTable table = new SqlTable(new JdbcTemplate(new DriverManagerDataSource("jdbc:none")) {
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T> T execute(ConnectionCallback<T> action) {
+                return (T) Boolean.FALSE;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T> T queryForObject(String s, Class<T> requiredType) {
+                sql.add(s);
+                return (T) Integer.valueOf(42);
+            }
+        }, "t", false, false);
+
+        // Rows aren't read, which would fail as there is no database.
+        Assert.assertEquals(42, table.count(Filter.ALL));
+        Assert.assertEquals(1, sql.size());
+        Assert.assertEquals("SELECT COUNT(*) FROM t", sql.get(0));
+    }
+
+    @Test
+    public void memoryAll() {
+        int[] evaluated = { -1 };
+        FakeTable fake = new FakeTable() {
+            @Override
+            void saveStats(String filter, int count, int included, boolean fillDii, long elapsed, long ts) {
+                evaluated[0] = count;
+            }
+        };
+        for (int i = 0; i < 10; i++)
+            fake.rows.put("r" + i, WriteBehindTest.row("r" + i));
+
+        MemoryTable table = new MemoryTable(WriteBehindTest.database(fake), "t", false, false, true);
+        try {
+            Assert.assertEquals(10, table.count(Filter.ALL));
+            // No rows were evaluated.
+            Assert.assertEquals(0, evaluated[0]);
+        }
+        finally {
+            table.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.brickhouse.TableListenerAdapter;
+import org.brickhouse.filter.Filter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+public class DeleteAllTest {
+    @Test
+    public void chunks() throws Exception {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < 1200; i++)
+            rows.add(SqlTable.toJson(WriteBehindTest.row("r" + i)));
+        rows.add(SqlTable.toJson(WriteBehindTest.row("x").delete("point")));
+
+        List<String> sql = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        SqlTable table = new SqlTable(new JdbcTemplate(dataSource()) {
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T> T execute(ConnectionCallback<T> action) {
+                return (T) Boolean.FALSE;
+            }
+
+            @Override
+            public void query(String s, RowCallbackHandler rch) {
+                for (String json : rows) {
+                    try {
+                        rch.processRow(proxy(ResultSet.class, json));
+                    }
+                    catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+
+            @Override
+            public int update(String s, Object... args) {
+                sql.add(s.substring(0, s.indexOf('(')));
+                sizes.add(args.length);
+                return args.length;
+            }
+        }, "t", false, false);
+        table.setDeleteChunkSize(500);
+        int[] notified = { -1 };
+        table.addListener(new TableListenerAdapter() {
+            @Override
+            public void deleteAll(Filter filter, int count) {
+                notified[0] = count;
+            }
+        });
+
+        // The matching ids are deleted in chunks of at most the chunk size.
+        Assert.assertEquals(1200, table.deleteAll(Filter.parse("point")));
+        Assert.assertEquals(1200, notified[0]);
+        Assert.assertEquals(3, sql.size());
+        Assert.assertEquals("DELETE FROM t WHERE id IN ", sql.get(0));
+        Assert.assertEquals(Arrays.asList(500, 500, 200), sizes);
+    }
+
+    /**
+     * A data source whose connections do nothing, so that transactions can be begun and committed.
+     */
+    private static DataSource dataSource() {
+        return proxy(DataSource.class, proxy(Connection.class, null));
+    }
+
+    /**
+     * Returns an implementation of the interface whose methods do nothing and return false, 0 or null, except those
+     * that return the type of the given value, which return it.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T proxy(Class<T> type, Object value) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (p, m, args) -> {
+            Class<?> r = m.getReturnType();
+            if (value != null && r.isInstance(value))
+                return value;
+            if (r == boolean.class)
+                return false;
+            if (r == int.class)
+                return 0;
+            if (r == long.class)
+                return 0L;
+            return null;
+        });
+    }
+}
@@ -0,0 +1,173 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.impl.WriteBehindTest.FakeTable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+public class LoadTest {
+    @Test
+    public void parallel() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 5000; i++)
+            ids.add(String.format("r%04d", i));
+        List<String> queries = new CopyOnWriteArrayList<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        SqlTable table = new SqlTable(new JdbcTemplate(new DriverManagerDataSource("jdbc:none")) {
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T> T execute(ConnectionCallback<T> action) {
+                return (T) Boolean.FALSE;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T> T queryForObject(String sql, Class<T> requiredType) {
+                return (T) Integer.valueOf(ids.size());
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T> List<T> queryForList(String sql, Class<T> elementType) {
+                int offset = Integer.parseInt(sql.substring(sql.lastIndexOf(' ') + 1));
+                return (List<T>) ids.subList(offset, offset + 1);
+            }
+
+            @Override
+            public void query(String sql, RowCallbackHandler rch, Object... args) {
+                queries.add(sql);
+                threads.add(Thread.currentThread().getName());
+                String from = sql.contains("id>=?") ? (String) args[0] : null;
+                String to = sql.contains("id<?") ? (String) args[args.length - 1] : null;
+                for (String id : ids) {
+                    if ((from == null || id.compareTo(from) >= 0) && (to == null || id.compareTo(to) < 0)) {
+                        try {
+                            rch.processRow(DeleteAllTest.proxy(ResultSet.class,
+                                    SqlTable.toJson(WriteBehindTest.row(id))));
+                        }
+                        catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            }
+        }, "t", false, false);
+
+        // The ids are split into a range for each connection, which are read on their own threads.
+        Map<String, HMap> rows = new ConcurrentHashMap<>();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger progress = new AtomicInteger();
+        table.loadAll(4, row -> {
+            if (rows.put(row.id().getId(), row) != null)
+                duplicates.incrementAndGet();
+        }, (loaded, total) -> progress.accumulateAndGet(loaded, Math::max));
+
+        Assert.assertEquals(5000, rows.size());
+        Assert.assertEquals(0, duplicates.get());
+        Assert.assertEquals(5000, progress.get());
+        Assert.assertEquals(4, queries.size());
+        Assert.assertEquals(4, threads.size());
+        Assert.assertTrue(queries.contains("SELECT json FROM t WHERE id<?"));
+        Assert.assertTrue(queries.contains("SELECT json FROM t WHERE id>=?"));
+    }
+
+    @Test
+    public void async() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeTable fake = blocked(release);
+        fake.rows.put("a", WriteBehindTest.row("a"));
+        MemoryTable table = new MemoryTable(WriteBehindTest.database(fake), "t", false, false, false,
+                new MemoryTableOptions().asyncLoad(true).flushInterval(10));
+        try {
+            // The constructor returns before the load is done, and writes wait for it.
+            Assert.assertFalse(table.isReady());
+            Assert.assertFalse(table.ready().isDone());
+            Thread writer = new Thread(() -> table.insert(WriteBehindTest.row("b")));
+            writer.start();
+            writer.join(200);
+            Assert.assertTrue(writer.isAlive());
+
+            release.countDown();
+            table.ready().get(10, TimeUnit.SECONDS);
+            writer.join(10000);
+            Assert.assertFalse(writer.isAlive());
+            Assert.assertTrue(table.isReady());
+            Assert.assertNotNull(table.readById("a"));
+            Assert.assertNotNull(table.readById("b"));
+        }
+        finally {
+            table.close();
+        }
+        Assert.assertTrue(fake.rows.containsKey("b"));
+    }
+
+    @Test
+    public void closeDuringLoad() throws Exception {
+        FakeTable fake = blocked(new CountDownLatch(1));
+        MemoryTable table = new MemoryTable(WriteBehindTest.database(fake), "t", false, false, false,
+                new MemoryTableOptions().asyncLoad(true));
+        CompletableFuture<Void> ready = table.ready();
+
+        // Closing stops the load, and fails anything waiting for it.
+        table.close();
+        try {
+            ready.get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertFalse(table.isReady());
+        try {
+            table.insert(WriteBehindTest.row("a"));
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Returns a table whose load waits until the latch is released.
+     */
+    private static FakeTable blocked(CountDownLatch release) {
+        return new FakeTable() {
+            @Override
+            void loadAll(int connections, Consumer<HMap> consumer, MemoryTableOptions.LoadProgress progress) {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.loadAll(connections, consumer, progress);
+            }
+        };
+    }
+}
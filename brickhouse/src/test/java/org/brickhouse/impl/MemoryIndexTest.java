@@ -0,0 +1,165 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.filter.Filter;
+import org.brickhouse.impl.MemoryIndex.Candidates;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryIndexTest {
+    private MemoryIndex index;
+    private Map<String, HMap> rows;
+
+    @Before
+    public void init() {
+        index = new MemoryIndex();
+        rows = new LinkedHashMap<>();
+        add(new HMap().put("id", new HReference("a")).put("equip").put("ahu"));
+        add(new HMap().put("id", new HReference("b")).put("equip").put("vav"));
+        add(new HMap().put("id", new HReference("c")).put("point").put("ahu"));
+        add(new HMap().put("id", new HReference("d")).put("site"));
+    }
+
+    private void add(HMap row) {
+        rows.put(row.id().getId(), row);
+        index.add(row.id().getId(), row);
+    }
+
+    /* Applies the candidates the same way the memory table does, and checks against a full scan. */
+    private void check(String filter, String... expected) {
+        Filter f = Filter.parse(filter);
+        Candidates c = f.resolve(index);
+        Set<String> actual = new HashSet<>();
+        for (HMap row : rows.values()) {
+            String id = row.id().getId();
+            if (c != null && c.complement == c.ids.contains(id))
+                continue;
+            if (f.include(row, rows::get))
+                actual.add(id);
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList(expected)), actual);
+    }
+
+    @Test
+    public void resolve() {
+        check("equip", "a", "b");
+        check("equip and ahu", "a");
+        check("equip or point", "a", "b", "c");
+        check("not equip", "c", "d");
+        check("ahu and not equip", "c");
+        check("not equip or ahu", "a", "c", "d");
+        check("not equip and not ahu", "d");
+        check("!(equip and ahu)", "b", "c", "d");
+        check("foo", new String[0]);
+        check("*", "a", "b", "c", "d");
+    }
+
+    @Test
+    public void exact() {
+        Assert.assertTrue(Filter.parse("equip and not ahu").resolve(index).exact);
+        Assert.assertFalse(Filter.parse("equip and id->site").resolve(index).exact);
+        Assert.assertNull(Filter.parse("!(equip and id->site)").resolve(index));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")),
+                Filter.parse("equip and id->site").resolve(index).ids);
+    }
+
+    @Test
+    public void equality() {
+        MemoryIndex.EqualityIndex ei = index.addEqualityIndex("siteRef");
+        Assert.assertNull(index.addEqualityIndex("siteRef"));
+        for (HMap row : rows.values())
+            ei.add(row.id().getId(), row.get("siteRef"));
+
+        add(new HMap().put("id", new HReference("e")).put("equip").put("siteRef", new HReference("d")));
+        add(new HMap().put("id", new HReference("f")).put("point").put("siteRef", new HReference("d")));
+        add(new HMap().put("id", new HReference("g")).put("equip").put("siteRef", new HReference("x")));
+
+        // Not used until it is ready.
+        Assert.assertFalse(Filter.parse("siteRef==@d").resolve(index).exact);
+        ei.ready = true;
+
+        Candidates c = Filter.parse("equip and siteRef==@d").resolve(index);
+        Assert.assertTrue(c.exact);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("e")), c.ids);
+        check("equip and siteRef==@d", "e");
+        check("siteRef==@d or siteRef==@x", "e", "f", "g");
+        check("equip and siteRef->site", "e");
+
+        HMap f2 = new HMap().put("id", new HReference("f")).put("point").put("siteRef", new HReference("x"));
+        index.update("f", rows.get("f"), f2);
+        rows.put("f", f2);
+        check("siteRef==@d", "e");
+        check("siteRef==@x", "f", "g");
+    }
+
+    @Test
+    public void range() {
+        MemoryIndex.RangeIndex ri = index.addRangeIndex("number");
+        ri.ready = true;
+        MemoryIndex.RangeIndex dates = index.addRangeIndex("date");
+        dates.ready = true;
+
+        add(new HMap().put("id", new HReference("e")).put("number", new HNumber(10)));
+        add(new HMap().put("id", new HReference("f")).put("number", new HNumber(50, "kW")));
+        add(new HMap().put("id", new HReference("g")).put("number", new HNumber(50)));
+        add(new HMap().put("id", new HReference("h")).put("number", new HNumber(90)));
+        add(new HMap().put("id", new HReference("i")).put("number", HNumber.NaN));
+        add(new HMap().put("id", new HReference("j")).put("number", "50"));
+        add(new HMap().put("id", new HReference("k")).put("date", new HDate(2015, 3, 1)));
+        add(new HMap().put("id", new HReference("l")).put("date", new HDate(2015, 6, 1)));
+
+        Assert.assertTrue(Filter.parse("number > 50").resolve(index).exact);
+        check("number > 50", "h");
+        check("number >= 50", "f", "g", "h", "i");
+        check("number < 50", "e");
+        check("number <= 50", "e", "f", "g", "i");
+        check("number > 10 and number < 90", "f", "g");
+        check("number < 20 or number > 80", "e", "h");
+        check("number > \"40\"", "j");
+        check("date >= 2015-05-01", "l");
+        check("date < 2015-05-01", "k");
+
+        HMap g2 = new HMap().put("id", new HReference("g")).put("number", new HNumber(95));
+        index.update("g", rows.get("g"), g2);
+        rows.put("g", g2);
+        check("number > 50", "g", "h");
+        check("number == 50kW", "f");
+        index.remove("f", rows.remove("f"));
+        check("number >= 50", "g", "h", "i");
+    }
+
+    @Test
+    public void update() {
+        HMap a = rows.get("a");
+        HMap a2 = new HMap().put("id", new HReference("a")).put("point");
+        index.update("a", a, a2);
+        rows.put("a", a2);
+        check("equip", "b");
+        check("point", "a", "c");
+
+        index.remove("b", rows.remove("b"));
+        check("equip", new String[0]);
+        Assert.assertEquals(2, index.count("point"));
+
+        // Tags that no entity has any more are dropped from the index.
+        Assert.assertEquals(0, index.count("equip"));
+        Assert.assertEquals(4, index.tagCount());
+    }
+}
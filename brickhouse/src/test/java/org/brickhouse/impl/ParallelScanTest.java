@@ -0,0 +1,96 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.brickhouse.CancelReadException;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.filter.Filter;
+import org.brickhouse.impl.WriteBehindTest.FakeTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelScanTest {
+    private static final Filter EVEN = Filter.parse("point and n == 0");
+
+    @Test
+    public void matches() {
+        MemoryTable table = table(5000);
+        try {
+            List<HMap> sequential = new ArrayList<>();
+            table.readAll(EVEN, sequential::add, false);
+            Assert.assertEquals(2500, sequential.size());
+
+            // Ordered scans give the rows in the same order as readAll, and unordered ones give the same rows.
+            List<HMap> ordered = new ArrayList<>();
+            table.readAllParallel(EVEN, ordered::add, false, true);
+            Assert.assertEquals(sequential, ordered);
+
+            Set<HMap> unordered = ConcurrentHashMap.newKeySet();
+            table.readAllParallel(EVEN, unordered::add, false, false);
+            Assert.assertEquals(new HashSet<>(sequential), unordered);
+
+            // Large tables are scanned in parallel by readAll(Filter).
+            Assert.assertEquals(sequential, table.readAll(EVEN));
+        }
+        finally {
+            table.close();
+        }
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        MemoryTable table = table(50000);
+        try {
+            // Once the consumer cancels it isn't called again, even from the other threads of the scan.
+            AtomicInteger calls = new AtomicInteger();
+            table.readAllParallel(EVEN, row -> {
+                calls.incrementAndGet();
+                throw new CancelReadException();
+            }, false, false);
+            int after = calls.get();
+            Thread.sleep(200);
+            Assert.assertEquals(after, calls.get());
+            Assert.assertTrue(after <= Runtime.getRuntime().availableProcessors() + 1);
+
+            // The same holds for any other exception, which is thrown to the caller.
+            AtomicInteger failures = new AtomicInteger();
+            try {
+                table.readAllParallel(EVEN, row -> {
+                    failures.incrementAndGet();
+                    throw new IllegalStateException();
+                }, false, false);
+                Assert.fail();
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+            after = failures.get();
+            Thread.sleep(200);
+            Assert.assertEquals(after, failures.get());
+        }
+        finally {
+            table.close();
+        }
+    }
+
+    private static MemoryTable table(int rows) {
+        FakeTable fake = new FakeTable();
+        for (int i = 0; i < rows; i++)
+            fake.rows.put("r" + i, WriteBehindTest.row("r" + i).put("n", new HNumber(i % 2)));
+        return new MemoryTable(WriteBehindTest.database(fake), "t", false, false, false,
+                new MemoryTableOptions().parallelScanThreshold(1000));
+    }
+}
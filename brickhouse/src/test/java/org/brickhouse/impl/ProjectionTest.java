@@ -0,0 +1,85 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.brickhouse.Query;
+import org.brickhouse.Table;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.filter.Filter;
+import org.brickhouse.impl.WriteBehindTest.FakeTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProjectionTest {
+    @Test
+    public void sql() {
+        FakeTable fake = fake();
+        assertProjected(fake);
+    }
+
+    @Test
+    public void memory() {
+        FakeTable fake = fake();
+        MemoryTable table = new MemoryTable(WriteBehindTest.database(fake), "t", false, false, false);
+        try {
+            assertProjected(table);
+            // The stored rows keep all of their tags.
+            Assert.assertTrue(table.readById("r1").has("point"));
+        }
+        finally {
+            table.close();
+        }
+    }
+
+    @Test
+    public void decode() {
+        // Only the requested tags are decoded from the json.
+        String json = SqlTable.toJson(WriteBehindTest.row("a").put("n", new HNumber(1)).put("dis", "A"));
+        HMap map = SqlTable.toMap(json, new LinkedHashSet<>(Arrays.asList("id", "n")));
+        Assert.assertEquals(new HMap().put("id", new HReference("a")).put("n", new HNumber(1)), map);
+    }
+
+    @Test
+    public void dialect() {
+        List<String> tags = Arrays.asList("id", "n");
+        Assert.assertEquals("jsonb_strip_nulls(jsonb_build_object(E'id', json -> E'id', E'n', json -> E'n'))",
+                new PostgresqlDialect(true).project(tags));
+        // A text column would be parsed once for each tag.
+        Assert.assertNull(new PostgresqlDialect().project(tags));
+    }
+
+    private static FakeTable fake() {
+        FakeTable fake = new FakeTable();
+        for (int i = 0; i < 5; i++)
+            fake.rows.put("r" + i, WriteBehindTest.row("r" + i).put("dis", "R" + i).put("n", new HNumber(i)));
+        fake.rows.get("r4").delete("n");
+        return fake;
+    }
+
+    private static void assertProjected(Table table) {
+        // Unsorted and sorted queries both return only the given tags and the id, leaving out missing tags.
+        for (Query query : new Query[] { new Query(Filter.parse("point")).tags("n"),
+                new Query(Filter.parse("point")).tags("n").sort("n") }) {
+            List<HMap> rows = table.readAll(query);
+            Assert.assertEquals(5, rows.size());
+            for (HMap row : rows) {
+                String id = row.id().getId();
+                HMap expected = new HMap().put("id", new HReference(id));
+                if (!id.equals("r4"))
+                    expected.put("n", new HNumber(Integer.parseInt(id.substring(1))));
+                Assert.assertEquals(expected, row);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.brickhouse.datatype.HBinary;
+import org.brickhouse.datatype.HBoolean;
+import org.brickhouse.datatype.HCoordinates;
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNA;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HTime;
+import org.brickhouse.datatype.HTimeZone;
+import org.brickhouse.datatype.HUri;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SnapshotTest {
+    @Test
+    public void roundTrip() throws Exception {
+        HMap a = new HMap().put("id", new HReference("a", "Alpha")).put("site").put("dis", "Alpha \u00e9")
+                .put("n", new HNumber(72.5, "\u00b0F")).put("nan", HNumber.NaN).put("b", HBoolean.FALSE)
+                .put("na", HNA.VALUE).put("uri", new HUri("http://example.com/"))
+                .put("date", new HDate(2015, 6, 1)).put("time", new HTime(13, 5, 7, 250))
+                .put("ts", new HDateTime(2015, 3, 1, 12, 0, 0, HTimeZone.forName("New_York"), -18000))
+                .put("geo", new HCoordinates(45.4, -75.7)).put("bin", new HBinary("text/plain"))
+                .put("list", new HList(new HNumber(1), new HMap().put("x")));
+        HMap b = new HMap().put("id", new HReference("b")).put("siteRef", new HReference("a"));
+
+        File file = File.createTempFile("brickhouse", Snapshot.SUFFIX);
+        try {
+            Snapshot.write(file, 42, true, 7, Arrays.asList(a, b));
+            List<HMap> rows = new ArrayList<>();
+            Snapshot s = Snapshot.read(file, rows::add);
+            Assert.assertEquals(42, s.mark);
+            Assert.assertTrue(s.clean);
+            Assert.assertEquals(7, s.checksum);
+            Assert.assertEquals(2, s.size);
+            Assert.assertEquals(Arrays.asList(a, b), rows);
+
+            // Any damage is detected.
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(raf.length() / 2);
+                int c = raf.read();
+                raf.seek(raf.length() / 2);
+                raf.write(c ^ 1);
+            }
+            try {
+                Snapshot.read(file, row -> {});
+                Assert.fail();
+            }
+            catch (IOException e) {
+                // expected
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void staleIds() throws Exception {
+        File dir = Files.createTempDirectory("snapshot").toFile();
+        WriteBehindTest.FakeTable fake = new WriteBehindTest.FakeTable();
+        fake.rows.put("a", WriteBehindTest.row("a"));
+        fake.rows.put("b", WriteBehindTest.row("b"));
+        MemoryTableOptions options = new MemoryTableOptions().snapshot(dir);
+        try {
+            new MemoryTable(WriteBehindTest.database(fake), "t", false, false, false, options).close();
+
+            // Another process replaces a row while the table is closed, leaving the same number of rows.
+            fake.rows.remove("a");
+            fake.rows.put("c", WriteBehindTest.row("c"));
+            MemoryTable table = new MemoryTable(WriteBehindTest.database(fake), "t", false, false, false, options);
+            Assert.assertNull(table.readById("a"));
+            Assert.assertNotNull(table.readById("c"));
+            table.close();
+        }
+        finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void staleRows() throws Exception {
+        File dir = Files.createTempDirectory("snapshot").toFile();
+        WriteBehindTest.FakeTable fake = new WriteBehindTest.FakeTable();
+        fake.rows.put("a", WriteBehindTest.row("a"));
+        MemoryTableOptions options = new MemoryTableOptions().snapshot(dir);
+        try {
+            // Snapshots are only written on close without a write-ahead log.
+            MemoryTable table = new MemoryTable(WriteBehindTest.database(fake), "t", false, false, false, options);
+            table.snapshot();
+            Assert.assertEquals(0, dir.list().length);
+            table.close();
+            Assert.assertEquals(1, dir.list().length);
+
+            // Another process updates a row in place while the table is closed.
+            fake.rows.put("a", WriteBehindTest.row("a").put("dis", "changed"));
+            table = new MemoryTable(WriteBehindTest.database(fake), "t", false, false, false, options);
+            Assert.assertEquals("changed", table.readById("a").getString("dis"));
+            Assert.assertEquals(2, fake.loads.get());
+            table.close();
+
+            // An unchanged database is loaded from the snapshot.
+            fake.rows.clear();
+            fake.rows.put("a", WriteBehindTest.row("a").put("dis", "changed"));
+            table = new MemoryTable(WriteBehindTest.database(fake), "t", false, false, false, options);
+            Assert.assertEquals("changed", table.readById("a").getString("dis"));
+            Assert.assertEquals(2, fake.loads.get());
+            table.close();
+        }
+        finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.Arrays;
+
+import org.brickhouse.Query;
+import org.brickhouse.filter.Filter;
+import org.brickhouse.impl.SqlDialect.Where;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SqlDialectTest {
+    @Test
+    public void postgresql() {
+        SqlDialect d = new PostgresqlDialect();
+
+        Where w = Filter.parse("point and siteRef==@s").resolve(d);
+        Assert.assertTrue(w.exact);
+        Assert.assertEquals("((json::jsonb ? E'point') AND ((json::jsonb -> E'siteRef') IS NOT DISTINCT FROM "
+                + "E'\"r:s\"'::jsonb))", w.sql);
+        Assert.assertTrue(w.params.isEmpty());
+
+        w = Filter.parse("dis==\"It's\"").resolve(d);
+        Assert.assertEquals("((json::jsonb -> E'dis') IS NOT DISTINCT FROM E'\"It\\'s\"'::jsonb)", w.sql);
+    }
+
+    @Test
+    public void postgresqlJsonb() {
+        Where w = Filter.parse("point and !(siteRef==@s)").resolve(new PostgresqlDialect(true));
+        Assert.assertTrue(w.exact);
+        Assert.assertEquals("((json ? E'point') AND NOT ((json @> E'{\"siteRef\":\"r:s\"}'::jsonb)))", w.sql);
+    }
+
+    @Test
+    public void mysql() {
+        SqlDialect d = new MysqlDialect();
+
+        Where w = Filter.parse("not point or kind==\"Number\"").resolve(d);
+        Assert.assertTrue(w.exact);
+        Assert.assertEquals(
+                "(NOT (JSON_CONTAINS_PATH(json, 'one', ?)) OR (JSON_EXTRACT(json, ?) <=> CAST(? AS JSON)))", w.sql);
+        Assert.assertEquals(Arrays.asList("$.\"point\"", "$.\"kind\"", "\"Number\""), w.params);
+    }
+
+    @Test
+    public void mysqlVersion() {
+        Assert.assertTrue(MysqlImpl.supportsJson("5.7.8"));
+        Assert.assertTrue(MysqlImpl.supportsJson("5.7.21-log"));
+        Assert.assertTrue(MysqlImpl.supportsJson("8.0.16"));
+        Assert.assertFalse(MysqlImpl.supportsJson("5.7.7-rc"));
+        Assert.assertFalse(MysqlImpl.supportsJson("5.6.40"));
+        Assert.assertFalse(MysqlImpl.supportsJson("5.5.5-10.3.7-MariaDB"));
+        Assert.assertFalse(MysqlImpl.supportsJson(null));
+    }
+
+    @Test
+    public void page() {
+        WriteBehindTest.FakeTable t = new WriteBehindTest.FakeTable(new PostgresqlDialect());
+
+        // Pages without a sort are taken in id order, so that they are the same from query to query.
+        t.stream(new Query(Filter.parse("point")).offset(10).limit(5)).close();
+        Assert.assertEquals(" ORDER BY id COLLATE \"C\" LIMIT 5 OFFSET 10", t.suffixes.get(0));
+        t.stream(new Query(Filter.parse("point"))).close();
+        Assert.assertEquals("", t.suffixes.get(1));
+        t.stream(new Query(Filter.parse("point")).sort("id", true).limit(5)).close();
+        Assert.assertEquals(" ORDER BY id COLLATE \"C\" DESC LIMIT 5 OFFSET 0", t.suffixes.get(2));
+
+        // Without an id order the page isn't pushed down.
+        t = new WriteBehindTest.FakeTable(new PostgresqlDialect() {
+            @Override
+            protected String idOrder() {
+                return null;
+            }
+        });
+        t.stream(new Query(Filter.parse("point")).limit(5)).close();
+        Assert.assertEquals("", t.suffixes.get(0));
+    }
+
+    @Test
+    public void tagIndex() {
+        Where w = Filter.parse("point and siteRef==@s").resolve(new TagIndexDialect(new MysqlDialect(), "t_tags"));
+        Assert.assertTrue(w.exact);
+        Assert.assertEquals("(id IN (SELECT id FROM t_tags WHERE name=?) AND id IN (SELECT id FROM t_tags WHERE name=? "
+                + "AND val=?))", w.sql);
+        Assert.assertEquals(Arrays.asList("point", "siteRef", "\"r:s\""), w.params);
+
+        w = Filter.parse("point").resolve(new TagIndexDialect(new PostgresqlDialect(), "t_tags"));
+        Assert.assertEquals("id IN (SELECT id FROM t_tags WHERE name=E'point')", w.sql);
+        Assert.assertTrue(w.params.isEmpty());
+    }
+
+    @Test
+    public void residual() {
+        SqlDialect d = new MysqlDialect();
+
+        // Comparisons and paths are approximated by the presence of the tag.
+        Where w = Filter.parse("point and number > 5").resolve(d);
+        Assert.assertFalse(w.exact);
+        Assert.assertEquals("(JSON_CONTAINS_PATH(json, 'one', ?) AND JSON_CONTAINS_PATH(json, 'one', ?))", w.sql);
+
+        w = Filter.parse("siteRef->geoCity==\"Ottawa\"").resolve(d);
+        Assert.assertFalse(w.exact);
+
+        // Approximations can't be negated, or be part of an or with a filter that can't be pushed down.
+        Assert.assertNull(Filter.parse("!(number > 5)").resolve(d));
+        Assert.assertNull(Filter.parse("point or not siteRef->site").resolve(d));
+        Assert.assertNull(Filter.parse("*").resolve(d));
+    }
+}
@@ -0,0 +1,96 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.brickhouse.Query;
+import org.brickhouse.Table;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.filter.Filter;
+import org.brickhouse.impl.SqlDialect.Where;
+import org.brickhouse.impl.WriteBehindTest.FakeTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamTest {
+    @Test
+    public void lazy() {
+        AtomicInteger read = new AtomicInteger();
+        FakeTable fake = new FakeTable() {
+            @Override
+            Stream<HMap> rows(Where where, String suffix, Set<String> tags) {
+                return super.rows(where, suffix, tags).peek(row -> read.incrementAndGet());
+            }
+        };
+        fill(fake);
+
+        // Only the rows that are consumed are read.
+        try (Stream<HMap> rows = fake.stream(Filter.parse("point"))) {
+            Assert.assertEquals(2, rows.limit(2).count());
+        }
+        Assert.assertEquals(2, read.get());
+    }
+
+    @Test
+    public void sqlPage() {
+        FakeTable fake = new FakeTable();
+        fill(fake);
+        assertPages(fake, fake);
+    }
+
+    @Test
+    public void memoryPage() {
+        FakeTable fake = new FakeTable();
+        fill(fake);
+        MemoryTable table = new MemoryTable(WriteBehindTest.database(fake), "t", false, false, false);
+        try {
+            assertPages(table, fake);
+        }
+        finally {
+            table.close();
+        }
+    }
+
+    private static void fill(FakeTable fake) {
+        for (int i = 0; i < 20; i++)
+            fake.rows.put("r" + i, WriteBehindTest.row("r" + i).put("n", new HNumber(i % 7)));
+        fake.rows.put("x", new HMap().put("id", new HReference("x")).put("n", 3));
+    }
+
+    private static void assertPages(Table table, FakeTable fake) {
+        Query sorted = new Query(Filter.parse("point")).sort("n", true);
+        List<HMap> all = fake.rows.values().stream().filter(row -> row.has("point")).sorted(sorted.comparator())
+                .collect(Collectors.toList());
+        Assert.assertEquals(20, all.size());
+
+        Assert.assertEquals(ids(all.subList(3, 8)),
+                ids(table.readAll(new Query(Filter.parse("point")).sort("n", true).offset(3).limit(5))));
+        try (Stream<HMap> rows = table.stream(new Query(Filter.parse("point")).sort("n", true).offset(18))) {
+            Assert.assertEquals(ids(all.subList(18, 20)), ids(rows.collect(Collectors.toList())));
+        }
+        Assert.assertTrue(table.readAll(new Query(Filter.parse("point")).offset(20)).isEmpty());
+
+        // Pages of an unsorted query don't overlap.
+        List<String> pages = new ArrayList<>();
+        for (int offset = 0; offset < 20; offset += 6)
+            pages.addAll(ids(table.readAll(new Query(Filter.parse("point")).offset(offset).limit(6))));
+        Assert.assertEquals(20, pages.stream().distinct().count());
+    }
+
+    private static List<String> ids(List<HMap> rows) {
+        return rows.stream().map(row -> row.id().getId()).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,68 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.brickhouse.Query;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.filter.Filter;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TopKTest {
+    @Test
+    public void order() {
+        HMap a = new HMap().put("id", new HReference("a")).put("n", new HNumber(2));
+        HMap b = new HMap().put("id", new HReference("b")).put("n", new HNumber(1));
+        HMap c = new HMap().put("id", new HReference("c")).put("n", HNumber.NaN);
+        HMap d = new HMap().put("id", new HReference("d")).put("n", new HNumber(1));
+        HMap e = new HMap().put("id", new HReference("e"));
+
+        List<HMap> rows = new ArrayList<>(Arrays.asList(e, d, c, b, a));
+        Query q = new Query(Filter.parse("id")).sort("n");
+        rows.sort(q.comparator());
+        // Ties are ordered by id, NaN after all numbers, and missing values last.
+        Assert.assertEquals(Arrays.asList(b, d, a, c, e), rows);
+
+        q = new Query(Filter.parse("id")).sort("n", true);
+        rows.sort(q.comparator());
+        Assert.assertEquals(Arrays.asList(c, a, b, d, e), rows);
+    }
+
+    @Test
+    public void page() {
+        List<HMap> rows = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++)
+            rows.add(new HMap().put("id", new HReference("r" + i)).put("n", new HNumber(random.nextInt(100))));
+        Collections.shuffle(rows, random);
+
+        Query q = new Query(Filter.parse("id")).sort("n", true);
+        List<HMap> sorted = new ArrayList<>(rows);
+        sorted.sort(q.comparator());
+
+        int[][] pages = { { 0, 10 }, { 50, 50 }, { 990, 50 }, { 1000, 10 }, { 10, 0 }, { 20, -1 } };
+        for (int[] page : pages) {
+            q = new Query(Filter.parse("id")).sort("n", true).offset(page[0]);
+            if (page[1] >= 0)
+                q.limit(page[1]);
+            TopK top = new TopK(q);
+            for (HMap row : rows)
+                top.offer(row);
+            int to = page[1] < 0 ? sorted.size() : Math.min(sorted.size(), page[0] + page[1]);
+            Assert.assertEquals(sorted.subList(Math.min(page[0], to), to), top.page());
+        }
+    }
+}
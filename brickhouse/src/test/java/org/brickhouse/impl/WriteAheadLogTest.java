@@ -0,0 +1,129 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.impl.MemoryTable.Write;
+import org.brickhouse.impl.MemoryTable.WriteType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteAheadLogTest {
+    private File dir;
+
+    @Before
+    public void init() throws Exception {
+        dir = Files.createTempDirectory("wal").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void recover() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir, 256, true);
+        for (int i = 0; i < 20; i++) {
+            Write w = write(WriteType.INSERT, "p" + i);
+            wal.append(w);
+            wal.sync(w.seq);
+        }
+        Write d = new Write(WriteType.DELETE, "p3", null);
+        wal.append(d);
+        wal.close();
+        Assert.assertTrue(dir.list().length > 1);
+
+        wal = new WriteAheadLog(dir, 256, true);
+        List<Write> writes = wal.recover();
+        Assert.assertEquals(21, writes.size());
+        Assert.assertEquals("p0", writes.get(0).id);
+        Assert.assertEquals(new HNumber(19), writes.get(19).row.get("n"));
+        Assert.assertEquals(WriteType.DELETE, writes.get(20).type);
+        Assert.assertNull(writes.get(20).row);
+        Assert.assertEquals(21, writes.get(20).seq);
+
+        // Sequence numbers and segments continue from the recovered log.
+        wal.discardRecovered();
+        Assert.assertEquals(0, dir.list().length);
+        Write w = write(WriteType.UPDATE, "p4");
+        wal.append(w);
+        Assert.assertEquals(22, w.seq);
+        wal.release(w.segment, 1);
+        wal.close();
+        Assert.assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void release() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir, 256, false);
+        Write[] writes = new Write[10];
+        for (int i = 0; i < writes.length; i++) {
+            writes[i] = write(WriteType.INSERT, "p" + i);
+            wal.append(writes[i]);
+        }
+        int segments = dir.list().length;
+
+        // Segments are only deleted once all older segments are deleted.
+        Write last = writes[writes.length - 1];
+        for (Write w : writes) {
+            if (w.segment != writes[0].segment && w.segment != last.segment)
+                wal.release(w.segment, 1);
+        }
+        Assert.assertEquals(segments, dir.list().length);
+        for (Write w : writes) {
+            if (w.segment == writes[0].segment)
+                wal.release(w.segment, 1);
+        }
+        Assert.assertEquals(1, dir.list().length);
+        wal.close();
+        Assert.assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void torn() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir, 4096, false);
+        Write w1 = write(WriteType.INSERT, "p1");
+        wal.append(w1);
+        Write w2 = write(WriteType.INSERT, "p2");
+        wal.append(w2);
+        wal.close();
+
+        // Corrupt the last byte of the second record.
+        File[] files = dir.listFiles();
+        Assert.assertEquals(1, files.length);
+        byte[] b = Files.readAllBytes(files[0].toPath());
+        int end = b.length;
+        while (b[end - 1] == 0)
+            end--;
+        try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+            raf.seek(end - 1);
+            raf.write(b[end - 1] ^ 0xff);
+        }
+
+        List<Write> writes = new WriteAheadLog(dir, 4096, false).recover();
+        Assert.assertEquals(1, writes.size());
+        Assert.assertEquals("p1", writes.get(0).id);
+    }
+
+    private static Write write(WriteType type, String id) {
+        return new Write(type, id, new HMap().put("id", new HReference(id)).put("point")
+                .put("n", new HNumber(Integer.parseInt(id.substring(1)))).put("dis", "Point " + id));
+    }
+}
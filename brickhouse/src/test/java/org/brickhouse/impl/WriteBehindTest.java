@@ -0,0 +1,461 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.brickhouse.Database;
+import org.brickhouse.TableListener;
+import org.brickhouse.WriteBehindFullException;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.filter.Filter;
+import org.brickhouse.impl.MemoryTable.Write;
+import org.brickhouse.impl.MemoryTable.WriteType;
+import org.brickhouse.impl.MemoryTableOptions.OverflowPolicy;
+import org.brickhouse.impl.SqlDialect.Where;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+public class WriteBehindTest {
+    private final HMap r1 = new HMap().put("a");
+    private final HMap r2 = new HMap().put("b");
+
+    @Test
+    public void coalesce() {
+        assertWrite(WriteType.INSERT, r2, write(WriteType.INSERT, r1).then(write(WriteType.UPDATE, r2)));
+        assertWrite(WriteType.UPDATE, r2, write(WriteType.UPDATE, r1).then(write(WriteType.UPDATE, r2)));
+        assertWrite(WriteType.DELETE, null, write(WriteType.UPDATE, r1).then(write(WriteType.DELETE, null)));
+        assertWrite(WriteType.DELETE, null, write(WriteType.INSERT, r1).then(write(WriteType.DELETE, null)));
+        assertWrite(WriteType.DELETE_INSERT, r2, write(WriteType.DELETE, null).then(write(WriteType.INSERT, r2)));
+        assertWrite(WriteType.DELETE, null, write(WriteType.DELETE, null).then(write(WriteType.UPDATE, r2)));
+        assertWrite(WriteType.DELETE_INSERT, r2, write(WriteType.DELETE, null).then(write(WriteType.INSERT, r1))
+                .then(write(WriteType.UPDATE, r2)));
+        assertWrite(WriteType.DELETE_INSERT, r2, write(WriteType.DELETE_INSERT, r1).then(
+                write(WriteType.DELETE_INSERT, r2)));
+    }
+
+    @Test
+    public void failure() throws Exception {
+        File dir = Files.createTempDirectory("wal").toFile();
+        File log = new File(dir, "t");
+        FakeTable fake = new FakeTable();
+        MemoryTableOptions options = new MemoryTableOptions().writeAheadLog(dir).writeAheadLogSync(false)
+                .flushInterval(10);
+        try {
+            // Transiently failed writes are retried, and their segments kept until they succeed.
+            MemoryTable table = new MemoryTable(database(fake), "t", false, false, false, options);
+            fake.failing = true;
+            table.insert(row("p1"));
+            await(() -> fake.attempts.get() > 0);
+            Assert.assertEquals(1, table.getWriteBehindStats().getPending());
+            Assert.assertEquals(0, table.getWriteBehindStats().getFailures());
+            Assert.assertEquals(1, segments(log));
+            fake.failing = false;
+            await(() -> fake.rows.containsKey("p1"));
+
+            // Writes that can never succeed are dead-lettered rather than retried.
+            fake.bad.add("bad");
+            table.insert(row("bad"));
+            await(() -> table.getWriteBehindStats().getFailures() == 1);
+            await(() -> table.getWriteBehindStats().getPending() == 0);
+            File deadLetter = new File(log, WriteAheadLog.DEAD_LETTER);
+            Assert.assertTrue(new String(Files.readAllBytes(deadLetter.toPath())).startsWith("INSERT\tbad\t"));
+
+            // Failed writes that are still pending when the table is closed are replayed when it is next opened.
+            fake.failing = true;
+            int attempts = fake.attempts.get();
+            table.insert(row("p2"));
+            table.deleteById("p1");
+            await(() -> fake.attempts.get() > attempts);
+            table.close();
+            Assert.assertTrue(segments(log) > 0);
+            Assert.assertFalse(fake.rows.containsKey("p2"));
+
+            // A replay that fails transiently keeps the log.
+            try {
+                new MemoryTable(database(fake), "t", false, false, false, options);
+                Assert.fail();
+            }
+            catch (RuntimeException e) {
+                // expected
+            }
+            Assert.assertTrue(segments(log) > 0);
+
+            // The bad write is replayed too, but doesn't stop the table from opening.
+            fake.failing = false;
+            MemoryTable reopened = new MemoryTable(database(fake), "t", false, false, false, options);
+            Assert.assertTrue(fake.rows.containsKey("p2"));
+            Assert.assertFalse(fake.rows.containsKey("p1"));
+            Assert.assertFalse(fake.rows.containsKey("bad"));
+            Assert.assertEquals(0, segments(log));
+            Assert.assertNotNull(reopened.readById("p2"));
+            reopened.close();
+        }
+        finally {
+            for (File f : log.listFiles())
+                f.delete();
+            log.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void outageFail() throws Exception {
+        // Failed writes keep their room in the queue while they are retried, so the queue fills during an outage.
+        FakeTable fake = new FakeTable();
+        fake.failing = true;
+        MemoryTable table = new MemoryTable(database(fake), "t", false, false, false, new MemoryTableOptions()
+                .queueCapacity(2).overflowPolicy(OverflowPolicy.FAIL).flushInterval(10));
+        table.insert(row("a"));
+        table.insert(row("b"));
+        await(() -> fake.attempts.get() > 0);
+        try {
+            table.insert(row("c"));
+            Assert.fail();
+        }
+        catch (WriteBehindFullException e) {
+            // expected
+        }
+        Assert.assertNull(table.readById("c"));
+
+        // The retries back off rather than retrying every flush interval.
+        Thread.sleep(500);
+        Assert.assertTrue(fake.attempts.get() < 15);
+
+        WriteBehindStats stats = table.getWriteBehindStats();
+        Assert.assertEquals(2, stats.getPending());
+        Assert.assertEquals(2, stats.getSubmitted());
+        Assert.assertEquals(0, stats.getWritten());
+        Assert.assertEquals(0, stats.getFailures());
+        Assert.assertTrue(stats.getOldestAge() >= 500);
+
+        // Once the database is back the room is returned.
+        fake.failing = false;
+        await(() -> table.getWriteBehindStats().getPending() == 0);
+        Assert.assertEquals(2, table.getWriteBehindStats().getWritten());
+        table.insert(row("c"));
+        table.close();
+        Assert.assertEquals(3, fake.rows.size());
+    }
+
+    @Test
+    public void outageBlock() throws Exception {
+        FakeTable fake = new FakeTable();
+        fake.failing = true;
+        MemoryTable table = new MemoryTable(database(fake), "t", false, false, false, new MemoryTableOptions()
+                .queueCapacity(1).overflowPolicy(OverflowPolicy.BLOCK).flushInterval(10));
+        table.insert(row("a"));
+        await(() -> fake.attempts.get() > 0);
+
+        // The writer blocks until the failed write has been written.
+        Thread writer = new Thread(() -> table.insert(row("b")));
+        writer.start();
+        writer.join(300);
+        Assert.assertTrue(writer.isAlive());
+        Assert.assertEquals(1, table.getWriteBehindStats().getPending());
+
+        fake.failing = false;
+        writer.join(10000);
+        Assert.assertFalse(writer.isAlive());
+        table.close();
+        Assert.assertEquals(2, fake.rows.size());
+    }
+
+    @Test
+    public void updateDelete() throws Exception {
+        // An update that races with a delete of the same row must not bring the row back.
+        FakeTable fake = new FakeTable();
+        MemoryTable table = new MemoryTable(database(fake), "t", false, false, false,
+                new MemoryTableOptions().flushInterval(10));
+        int count = 2000;
+        for (int i = 0; i < count; i++)
+            table.insert(row("r" + i));
+        AtomicInteger updated = new AtomicInteger();
+        Thread updater = new Thread(() -> {
+            for (int i = 0; i < count; i++)
+                updated.addAndGet(table.updateById(row("r" + i).put("v", "u")));
+        });
+        updater.start();
+        int deleted = 0;
+        for (int i = 0; i < count; i++)
+            deleted += table.deleteById("r" + i);
+        updater.join();
+        table.close();
+
+        Assert.assertEquals(count, deleted);
+        Assert.assertTrue(updated.get() <= count);
+        Assert.assertEquals(0, table.count(Filter.ALL));
+        Assert.assertTrue(fake.rows.isEmpty());
+    }
+
+    @Test
+    public void ordering() throws Exception {
+        // Concurrent writes to the same ids reach the database in the order they were made to the table.
+        FakeTable fake = new FakeTable();
+        MemoryTable table = new MemoryTable(database(fake), "t", false, false, false,
+                new MemoryTableOptions().writers(4).flushInterval(1));
+        int ids = 20;
+        for (int i = 0; i < ids; i++)
+            table.insert(row("r" + i));
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            String name = "t" + t;
+            threads[t] = new Thread(() -> {
+                for (int n = 0; n < 500; n++) {
+                    for (int i = 0; i < ids; i++)
+                        table.updateById(row("r" + i).put("v", name + "-" + n));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        table.close();
+
+        for (int i = 0; i < ids; i++)
+            Assert.assertEquals(table.readById("r" + i).getString("v"), fake.rows.get("r" + i).getString("v"));
+    }
+
+    @Test
+    public void listeners() throws Exception {
+        FakeTable fake = new FakeTable();
+        fake.bad.add("bad");
+        List<String> inserted = new CopyOnWriteArrayList<>();
+        fake.addListener(new TableListener() {
+            @Override
+            public void insert(HMap record) {
+                inserted.add(record.id().getId());
+            }
+
+            @Override
+            public void batchInsert(List<HMap> records) {
+                for (HMap record : records)
+                    inserted.add(record.id().getId());
+            }
+
+            @Override
+            public void update(HMap map, int count) {
+                // no op
+            }
+
+            @Override
+            public void deleteById(String id, int count) {
+                // no op
+            }
+
+            @Override
+            public void deleteAll(Filter filter, int count) {
+                // no op
+            }
+        });
+
+        // The batch with the bad row fails, and the rows are written individually. Listeners are only told of the
+        // rows that were written, and only once.
+        MemoryTable table = new MemoryTable(database(fake), "t", false, false, false,
+                new MemoryTableOptions().flushInterval(10));
+        table.insert(row("a"));
+        table.insert(row("bad"));
+        table.insert(row("b"));
+        await(() -> table.getWriteBehindStats().getPending() == 0);
+        table.close();
+
+        Assert.assertEquals(2, inserted.size());
+        Assert.assertTrue(inserted.containsAll(Arrays.asList("a", "b")));
+    }
+
+    private static int segments(File log) {
+        return log.list((d, name) -> name.endsWith(WriteAheadLog.SUFFIX)).length;
+    }
+
+    static HMap row(String id) {
+        return new HMap().put("id", new HReference(id)).put("point");
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                Assert.fail("Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A table that keeps its rows in a map rather than a database. It fails all writes as though the database were
+     * unavailable while failing is set, and always fails writes of the bad ids.
+     */
+    static class FakeTable extends SqlTable {
+        final Map<String, HMap> rows = new ConcurrentHashMap<>();
+        final Set<String> bad = ConcurrentHashMap.newKeySet();
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicInteger loads = new AtomicInteger();
+        /** The clauses appended to each query, e.g. ORDER BY. */
+        final List<String> suffixes = new CopyOnWriteArrayList<>();
+        volatile boolean failing;
+
+        FakeTable() {
+            this(null);
+        }
+
+        FakeTable(SqlDialect dialect) {
+            super(new JdbcTemplate(new DriverManagerDataSource("jdbc:none")) {
+                @SuppressWarnings("unchecked")
+                @Override
+                public <T> T execute(ConnectionCallback<T> action) {
+                    // The only query made on construction is whether the tag index exists.
+                    return (T) Boolean.FALSE;
+                }
+            }, "t", false, false, dialect);
+        }
+
+        @Override
+        Stream<HMap> rows(Where where, String suffix, Set<String> tags) {
+            suffixes.add(suffix);
+            return new TreeMap<>(rows).values().stream();
+        }
+
+        @Override
+        void transaction(Runnable work) {
+            check();
+            work.run();
+        }
+
+        @Override
+        void loadAll(int connections, Consumer<HMap> consumer, MemoryTableOptions.LoadProgress progress) {
+            loads.incrementAndGet();
+            rows.values().forEach(consumer);
+        }
+
+        @Override
+        int rowCount() {
+            return rows.size();
+        }
+
+        @Override
+        long idChecksum() {
+            long sum = 0;
+            for (String id : rows.keySet())
+                sum += hash(id);
+            return sum;
+        }
+
+        @Override
+        long checksum() {
+            long sum = 0;
+            for (Map.Entry<String, HMap> e : rows.entrySet())
+                sum += hash(hash(e.getKey()), toJson(e.getValue()));
+            return sum;
+        }
+
+        @Override
+        void insertImpl(HMap map) {
+            check();
+            if (bad.contains(map.id().getId()))
+                throw new DataIntegrityViolationException("Bad row");
+            rows.put(map.id().getId(), map);
+        }
+
+        @Override
+        void batchInsertImpl(List<HMap> list) {
+            for (HMap map : list)
+                insertImpl(map);
+        }
+
+        @Override
+        int updateImpl(HMap map) {
+            check();
+            return rows.put(map.id().getId(), map) == null ? 0 : 1;
+        }
+
+        @Override
+        int[] batchUpdateImpl(List<HMap> list) {
+            int[] result = new int[list.size()];
+            for (int i = 0; i < result.length; i++)
+                result[i] = updateImpl(list.get(i));
+            return result;
+        }
+
+        @Override
+        int deleteImpl(String id) {
+            check();
+            return rows.remove(id) == null ? 0 : 1;
+        }
+
+        @Override
+        int[] batchDeleteImpl(List<String> ids) {
+            int[] result = new int[ids.size()];
+            for (int i = 0; i < result.length; i++)
+                result[i] = deleteImpl(ids.get(i));
+            return result;
+        }
+
+        private void check() {
+            if (failing) {
+                attempts.incrementAndGet();
+                throw new DataAccessResourceFailureException("Database unavailable");
+            }
+        }
+    }
+
+    static Database database(SqlTable table) {
+        return new Database() {
+            @Override
+            public SqlTable getTable(String name, boolean create) {
+                return table;
+            }
+
+            @Override
+            public SqlTable getTable(String name, boolean create, boolean setDis, boolean stats) {
+                return table;
+            }
+
+            @Override
+            public Connection getConnection() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public JdbcTemplate getJdbcTemplate() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                // no op
+            }
+        };
+    }
+
+    private static Write write(WriteType type, HMap row) {
+        return new Write(type, "x", row);
+    }
+
+    private static void assertWrite(WriteType type, HMap row, Write w) {
+        Assert.assertEquals(type, w.type);
+        Assert.assertSame(row, w.row);
+    }
+}
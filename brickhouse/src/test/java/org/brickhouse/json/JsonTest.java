@@ -194,4 +194,16 @@ public class JsonTest {
 
         Assert.assertEquals(grid, in);
     }
+
+    @Test
+    public void internTest() throws Exception {
+        String json = "{\"siteRef\":\"r:s1\",\"kind\":\"Number\",\"n\":\"n:5kW\"}";
+        HMap a = new JsonReader(jctx, json).read(HMap.class);
+        HMap b = new JsonReader(jctx, json).read(HMap.class);
+
+        Assert.assertSame(a.keySet().iterator().next(), b.keySet().iterator().next());
+        Assert.assertSame(a.get("siteRef"), b.get("siteRef"));
+        Assert.assertSame(a.get("kind"), b.get("kind"));
+        Assert.assertSame(a.getNumber("n").getUnit(), b.getNumber("n").getUnit());
+    }
 }
@@ -162,4 +162,17 @@ public class ZincTest {
     private HGrid stringToGrid(String s) {
         return new ZincReader(s).readGrid();
     }
+
+    @Test
+    public void internTest() {
+        String zinc = "ver:\"2.0\"\nid,dis,siteRef,kind\n@a,\"A\",@s1,\"Number\"\n";
+        HMap a = new ZincReader(zinc).readGrid().getRows().get(0);
+        HMap b = new ZincReader(zinc).readGrid().getRows().get(0);
+
+        // Shared values are interned, but ids and display names are unique to each entity and so are not.
+        Assert.assertSame(a.get("siteRef"), b.get("siteRef"));
+        Assert.assertSame(a.get("kind"), b.get("kind"));
+        Assert.assertNotSame(a.get("id"), b.get("id"));
+        Assert.assertNotSame(a.get("dis"), b.get("dis"));
+    }
 }